@@ -1,9 +1,9 @@
 package com.hstahlmann.dbuserprovider;
 
-import com.hstahlmann.dbuserprovider.model.QueryConfigurations;
 import com.hstahlmann.dbuserprovider.model.UserAdapter;
-import com.hstahlmann.dbuserprovider.persistence.DataSourceProvider;
 import com.hstahlmann.dbuserprovider.persistence.UserRepository;
+import com.hstahlmann.dbuserprovider.persistence.UserSearchIndex;
+import com.hstahlmann.dbuserprovider.util.AttributeSearchQuery;
 import com.hstahlmann.dbuserprovider.util.PagingUtil;
 import lombok.Getter;
 import lombok.extern.jbosslog.JBossLog;
@@ -16,6 +16,7 @@ import org.keycloak.models.cache.CachedUserModel;
 import org.keycloak.models.credential.PasswordCredentialModel;
 import org.keycloak.storage.StorageId;
 import org.keycloak.storage.UserStorageProvider;
+import org.keycloak.storage.UserStorageUtil;
 import org.keycloak.storage.user.UserLookupProvider;
 import org.keycloak.storage.user.UserQueryProvider;
 import org.keycloak.storage.user.UserRegistrationProvider;
@@ -23,6 +24,7 @@ import org.keycloak.policy.PasswordPolicyManagerProvider;
 import org.keycloak.policy.PolicyError;
 
 import java.util.*;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 @JBossLog
@@ -34,16 +36,29 @@ public class DBUserStorageProvider implements UserStorageProvider, UserLookupPro
     final UserRepository  repository;
     private final boolean allowDatabaseToOverwriteKeycloak;
     
-    DBUserStorageProvider(KeycloakSession session, ComponentModel model, DataSourceProvider dataSourceProvider, QueryConfigurations queryConfigurations) {
+    DBUserStorageProvider(KeycloakSession session, ComponentModel model, UserRepository repository) {
         this.session    = session;
         this.model      = model;
-        this.repository = new UserRepository(dataSourceProvider, queryConfigurations);
-        this.allowDatabaseToOverwriteKeycloak = queryConfigurations.getAllowDatabaseToOverwriteKeycloak();
+        this.repository = repository;
+        this.allowDatabaseToOverwriteKeycloak = repository.getQueryConfigurations().getAllowDatabaseToOverwriteKeycloak();
     }
     
     private Stream<UserModel> toUserModel(RealmModel realm, List<Map<String, String>> users) {
+        if (users == null) {
+            // the query failed or was rejected
+            return Stream.empty();
+        }
         return users.stream()
-                    .map(m -> new UserAdapter(session, realm, model, m, allowDatabaseToOverwriteKeycloak));
+                    .map(m -> toUserModel(realm, m));
+    }
+
+    UserModel toUserModel(RealmModel realm, Map<String, String> user) {
+        String  externalId = user.get("id");
+        boolean stale      = repository.isStale(externalId);
+        if (stale) {
+            log.debugv("User {0} of realm {1} is served from its last known data", externalId, realm.getName());
+        }
+        return new UserAdapter(session, realm, model, user, allowDatabaseToOverwriteKeycloak, () -> repository.findRoleMappings(externalId), stale);
     }
 
     @Override
@@ -69,12 +84,13 @@ public class DBUserStorageProvider implements UserStorageProvider, UserLookupPro
         UserCredentialModel cred = (UserCredentialModel) input;
 
         UserModel dbUser;
-        // If the cache just got loaded in the last 500 millisec (i.e. probably part of the actual flow), there is no point in reloading the user.)
-        if (allowDatabaseToOverwriteKeycloak && user instanceof CachedUserModel && (System.currentTimeMillis() - ((CachedUserModel) user).getCacheTimestamp()) > 500) {
+        // If the cache was loaded recently (within the user's adaptive TTL, or 500 millisec while it is disabled, i.e. probably part of the actual flow), there is no point in reloading the user.
+        if (allowDatabaseToOverwriteKeycloak && user instanceof CachedUserModel && !repository.isFresh(StorageId.externalId(user.getId()), ((CachedUserModel) user).getCacheTimestamp())) {
 
-            dbUser = this.getUserById(realm, user.getId());
+            dbUser = Optional.ofNullable(repository.loadUserById(StorageId.externalId(user.getId()))).map(u -> toUserModel(realm, u)).orElse(null);
 
             if (dbUser == null) {
+                repository.invalidateUser(StorageId.externalId(user.getId()));
                 ((CachedUserModel) user).invalidate();
                 return false;
             }
@@ -82,6 +98,7 @@ public class DBUserStorageProvider implements UserStorageProvider, UserLookupPro
             // For now, we'll just invalidate the cache if username or email has changed. Eventually we could check all (or a parametered list of) attributes fetched from the DB.
             if (!java.util.Objects.equals(user.getUsername(), dbUser.getUsername()) || !java.util.Objects.equals(user.getEmail(), dbUser.getEmail()) ||
                 !java.util.Objects.equals(user.getFirstName(), dbUser.getFirstName()) || !java.util.Objects.equals(user.getLastName(), dbUser.getLastName())) {
+                repository.invalidateUser(StorageId.externalId(user.getId()));
                 ((CachedUserModel) user).invalidate();
             }
         }
@@ -152,7 +169,7 @@ public class DBUserStorageProvider implements UserStorageProvider, UserLookupPro
             log.debugv("findUserById returned null, skipping creation of UserAdapter, expect login error");
             return null;
         } else {
-            return new UserAdapter(session, realm, model, user, allowDatabaseToOverwriteKeycloak);
+            return toUserModel(realm, user);
         }
     }
     
@@ -160,7 +177,7 @@ public class DBUserStorageProvider implements UserStorageProvider, UserLookupPro
     public UserModel getUserByUsername(RealmModel realm, String username) {
         
         log.debugv("lookup user by username: realm={0} username={1}", realm.getName(), username);
-        return repository.findUserByLoginName(username, realm.isLoginWithEmailAllowed()).map(u -> new UserAdapter(session, realm, model, u, allowDatabaseToOverwriteKeycloak)).orElse(null);
+        return repository.findUserByLoginName(username, realm.isLoginWithEmailAllowed()).map(u -> toUserModel(realm, u)).orElse(null);
     }
     
     @Override
@@ -178,46 +195,130 @@ public class DBUserStorageProvider implements UserStorageProvider, UserLookupPro
     
     @Override
     public int getUsersCount(RealmModel realm, Set<String> groupIds) {
-        return repository.getUsersCount(null);
+        return countGroupMembers(realm, groupIds);
     }
     
     @Override
     public int getUsersCount(RealmModel realm, Map<String, String> params) {
-        return repository.getUsersCount(null);
+        if (isAttributeSearch(params)) {
+            return repository.getUsersCountByAttributes(params);
+        }
+        return repository.getUsersCount(params.get(UserModel.SEARCH));
     }
     
     @Override
     public int getUsersCount(RealmModel realm, Map<String, String> params, Set<String> groupIds) {
-        return repository.getUsersCount(null);
+        if (groupIds == null) {
+            return getUsersCount(realm, params);
+        }
+        String search = params.get(UserModel.SEARCH);
+        boolean searching = search != null && !UserSearchIndex.toPrefix(search).isBlank();
+        if (!searching && !AttributeSearchQuery.isApplicable(params)) {
+            return countGroupMembers(realm, groupIds);
+        }
+        return countMatchingGroupMembers(realm, groupIds, params);
     }
     
     @Override
     public int getUsersCount(RealmModel realm, boolean includeServiceAccount) {
+        // the database does not contain service accounts
         return repository.getUsersCount(null);
     }
 
+    /*
+     * Group memberships of federated users live in Keycloak's federated storage, the database knows nothing about
+     * them. Only members belonging to this provider are counted.
+     */
+    private int countGroupMembers(RealmModel realm, Set<String> groupIds) {
+        if (groupIds == null || groupIds.isEmpty()) {
+            return 0;
+        }
+        String key = "groups:" + String.join(",", new TreeSet<>(groupIds));
+        return repository.getCachedCount(key, k -> (int) groupIds.stream()
+                                                                 .map(realm::getGroupById)
+                                                                 .filter(Objects::nonNull)
+                                                                 .flatMap(group -> UserStorageUtil.userFederatedStorage(session).getMembershipStream(realm, group, null, null))
+                                                                 .filter(userId -> model.getId().equals(StorageId.providerId(userId)))
+                                                                 .distinct()
+                                                                 .count());
+    }
+
+    /*
+     * Group members matching a search: counted by the search query itself (the search term query or the
+     * attribute search), limited to the ids of the members.
+     */
+    private int countMatchingGroupMembers(RealmModel realm, Set<String> groupIds, Map<String, String> params) {
+        if (groupIds.isEmpty()) {
+            return 0;
+        }
+        String key = "groups:" + String.join(",", new TreeSet<>(groupIds)) + ":" + new TreeMap<>(params);
+        return repository.getCachedCount(key, k -> {
+            List<String> externalIds = groupIds.stream()
+                                               .map(realm::getGroupById)
+                                               .filter(Objects::nonNull)
+                                               .flatMap(group -> UserStorageUtil.userFederatedStorage(session).getMembershipStream(realm, group, null, null))
+                                               .filter(userId -> model.getId().equals(StorageId.providerId(userId)))
+                                               .map(StorageId::externalId)
+                                               .distinct()
+                                               .collect(Collectors.toList());
+            if (isAttributeSearch(params)) {
+                return repository.countUsersByAttributesAmong(externalIds, params);
+            }
+            return repository.countUsersAmong(externalIds, params.get(UserModel.SEARCH));
+        });
+    }
+
     public List<Map<String, String>> getAllUsers() {
         return repository.getAllUsers();
     }
+
+    public Stream<Map<String, String>> getAllUsersStream() {
+        return repository.getAllUsersStream();
+    }
     
     @Override
     public Stream<UserModel> searchForUserStream(RealmModel realm, Map<String, String> params) {
         String search = params.get(UserModel.SEARCH);
         log.debugv("search for users: realm={0} search={1}", realm.getName(), search);
-        return internalSearchForUser(search, realm, null);
+        if (!isAttributeSearch(params)) {
+            return repository.findUsersStream(search).map(u -> toUserModel(realm, u));
+        }
+        return internalSearchForUser(params, realm, null);
     }
     
-    private Stream<UserModel> internalSearchForUser(String search, RealmModel realm, PagingUtil.Pageable pageable) {
-        return toUserModel(realm, repository.findUsers(search, pageable));
+    private Stream<UserModel> internalSearchForUser(Map<String, String> params, RealmModel realm, PagingUtil.Pageable pageable) {
+        if (isAttributeSearch(params)) {
+            return toUserModel(realm, repository.findUsersByAttributes(params, pageable));
+        }
+        return toUserModel(realm, repository.findUsers(params.get(UserModel.SEARCH), pageable));
+    }
+
+    /*
+     * A free text search always goes to the search term query, the per-field lookups are only used when the
+     * admin console or an API client asks for specific fields.
+     */
+    private boolean isAttributeSearch(Map<String, String> params) {
+        String search = params.get(UserModel.SEARCH);
+        return repository.getQueryConfigurations().isAttributeSearch() && (search == null || search.isEmpty()) && AttributeSearchQuery.isApplicable(params);
     }
     
     @Override
     public Stream<UserModel> searchForUserStream(RealmModel realm, Map<String, String> params, Integer firstResult, Integer maxResults) {
         String search = params.get(UserModel.SEARCH);
         log.debugv("search for users: realm={0} search={1} firstResult={2} maxResults={3}", realm.getName(), search, firstResult, maxResults);
-        return internalSearchForUser(search, realm, new PagingUtil.Pageable(firstResult, maxResults));
+        int first = firstResult == null ? 0 : Math.max(firstResult, 0);
+        if (maxResults == null || maxResults < 0) {
+            // no page size: the unpaged search, which streams the rows where configured
+            return first == 0 ? searchForUserStream(realm, params) : searchForUserStream(realm, params).skip(first);
+        }
+        return internalSearchForUser(params, realm, new PagingUtil.Pageable(first, maxResults));
     }
     
+    /*
+     * Memberships of federated users are kept in Keycloak's federated storage, and Keycloak's UserStorageManager
+     * already lists those members itself (getMembershipStream plus a lookup by id), with its own paging. Members
+     * returned here would be listed twice.
+     */
     @Override
     public Stream<UserModel> getGroupMembersStream(RealmModel realm, GroupModel group, Integer firstResult, Integer maxResults) {
         log.debugv("search for group members with params: realm={0} groupId={1} firstResult={2} maxResults={3}", realm.getName(), group.getId(), firstResult, maxResults);
@@ -249,6 +350,7 @@ public class DBUserStorageProvider implements UserStorageProvider, UserLookupPro
         boolean userRemoved = repository.removeUser();
         
         if (userRemoved) {
+            repository.invalidateUser(StorageId.externalId(user.getId()));
             log.infov("deleted keycloak user: realm={0} userId={1} username={2}", realm.getName(), user.getId(), user.getUsername());
         }
         
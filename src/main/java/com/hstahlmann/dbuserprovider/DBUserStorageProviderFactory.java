@@ -1,9 +1,18 @@
 package com.hstahlmann.dbuserprovider;
 
 import com.google.auto.service.AutoService;
+import com.hstahlmann.dbuserprovider.cluster.ClusterInvalidationBus;
+import com.hstahlmann.dbuserprovider.cluster.InvalidationBus;
+import com.hstahlmann.dbuserprovider.cluster.LocalInvalidationBus;
+import com.hstahlmann.dbuserprovider.cluster.UserInvalidationEvent;
+import com.hstahlmann.dbuserprovider.model.CacheConfigurations;
+import com.hstahlmann.dbuserprovider.model.DataSourceConfigurations;
 import com.hstahlmann.dbuserprovider.model.QueryConfigurations;
+import com.hstahlmann.dbuserprovider.persistence.ConnectionSettings;
 import com.hstahlmann.dbuserprovider.persistence.DataSourceProvider;
+import com.hstahlmann.dbuserprovider.persistence.OperationClass;
 import com.hstahlmann.dbuserprovider.persistence.RDBMS;
+import com.hstahlmann.dbuserprovider.persistence.UserRepository;
 import lombok.extern.jbosslog.JBossLog;
 import org.keycloak.Config;
 import org.keycloak.component.ComponentModel;
@@ -13,6 +22,7 @@ import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.models.cache.UserCache;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
 import org.keycloak.storage.UserStorageProvider;
@@ -22,6 +32,8 @@ import org.keycloak.storage.user.ImportSynchronization;
 import org.keycloak.storage.user.SynchronizationResult;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
 @JBossLog
 @AutoService(UserStorageProviderFactory.class)
@@ -36,33 +48,126 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
     private static final String PARAMETER_HELP             = " The %s is passed as query parameter.";
     
     
-    private final Map<String, ProviderConfig> providerConfigPerInstance = new HashMap<>();
+    private final Map<String, ProviderConfig> providerConfigPerInstance = new ConcurrentHashMap<>();
+    // one lock per component, so configuring one component does not hold up the others
+    private final Map<String, Object>         configureLocks            = new ConcurrentHashMap<>();
+    private volatile InvalidationBus          invalidationBus;
+    private volatile KeycloakSessionFactory   sessionFactory;
     
+    /*
+     * Until the cluster is available in postInit, invalidations are delivered to the components of this node only.
+     */
     @Override
     public void init(Config.Scope config) {
+        LocalInvalidationBus localBus = new LocalInvalidationBus();
+        localBus.addListener(this::onInvalidation);
+        invalidationBus = localBus;
+    }
+
+    /*
+     * Configures all components of this provider when the server starts instead of on first use, so their
+     * connection pools and user cache warm-ups are ready before the first logins arrive.
+     */
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        sessionFactory = factory;
+        invalidationBus = new ClusterInvalidationBus(factory, this::onInvalidation);
+        Thread startup = new Thread(() -> {
+            try {
+                KeycloakModelUtils.runJobInTransaction(factory, session -> session.realms().getRealmsStream()
+                        .flatMap(realm -> realm.getStorageProviders(UserStorageProvider.class))
+                        .filter(component -> getId().equals(component.getProviderId()))
+                        .forEach(component -> {
+                            try {
+                                getOrConfigure(component);
+                            } catch (RuntimeException e) {
+                                log.warnv("Provider {0} could not be configured at startup: {1}", component.getName(), e.getMessage());
+                            }
+                        }));
+            } catch (RuntimeException e) {
+                log.warnv("Providers could not be configured at startup: {0}", e.getMessage());
+            }
+        }, "sql-user-provider-startup");
+        startup.setDaemon(true);
+        startup.start();
+    }
+    
+    /*
+     * Evicts users changed in the database from Keycloak's user cache; the users are evicted by id, username and
+     * email of their old and new rows.
+     */
+    private void evictFromUserCache(ComponentModel model, UserRepository repository, Collection<Map<String, String>> users) {
+        KeycloakSessionFactory factory = sessionFactory;
+        if (factory == null) {
+            return;
+        }
+        KeycloakModelUtils.runJobInTransaction(factory, session -> {
+            RealmModel realm = session.realms().getRealm(model.getParentId());
+            UserCache  cache = session.getProvider(UserCache.class);
+            if (realm == null || cache == null) {
+                return;
+            }
+            DBUserStorageProvider provider = new DBUserStorageProvider(session, model, repository);
+            users.forEach(user -> cache.evict(realm, provider.toUserModel(realm, user)));
+        });
+    }
+    
+    private void onInvalidation(UserInvalidationEvent event) {
+        ProviderConfig providerConfig = providerConfigPerInstance.get(event.getComponentId());
+        if (providerConfig != null) {
+            providerConfig.repository.onInvalidation(event);
+        }
     }
     
     @Override
     public void close() {
+        invalidationBus.close();
         for (Map.Entry<String, ProviderConfig> pc : providerConfigPerInstance.entrySet()) {
+            pc.getValue().repository.close();
             pc.getValue().dataSourceProvider.close();
         }
     }
     
     @Override
     public DBUserStorageProvider create(KeycloakSession session, ComponentModel model) {
-        ProviderConfig providerConfig = providerConfigPerInstance.computeIfAbsent(model.getId(), s -> configure(model));
-        return new DBUserStorageProvider(session, model, providerConfig.dataSourceProvider, providerConfig.queryConfigurations);
+        return new DBUserStorageProvider(session, model, getOrConfigure(model).repository);
+    }
+
+    /*
+     * Returns the configuration of a component, creating it on first use. Only callers for the same component
+     * wait while its pools are opened; the configuration map itself is never locked for that long.
+     */
+    private ProviderConfig getOrConfigure(ComponentModel model) {
+        ProviderConfig providerConfig = providerConfigPerInstance.get(model.getId());
+        if (providerConfig != null) {
+            return providerConfig;
+        }
+        synchronized (configureLock(model.getId())) {
+            providerConfig = providerConfigPerInstance.get(model.getId());
+            if (providerConfig == null) {
+                providerConfig = configure(model, null);
+                providerConfigPerInstance.put(model.getId(), providerConfig);
+            }
+            return providerConfig;
+        }
+    }
+
+    private Object configureLock(String componentId) {
+        return configureLocks.computeIfAbsent(componentId, id -> new Object());
     }
     
-    private synchronized ProviderConfig configure(ComponentModel model) {
+    /*
+     * Creates the configuration of a component. The data source provider of a previous configuration is reused
+     * and switched to the new settings in place, so in-flight queries finish on the old pool. The repository and
+     * its caches are kept as well unless the query or cache settings changed.
+     */
+    private ProviderConfig configure(ComponentModel model, ProviderConfig previous) {
         log.debugv("Creating configuration for model: id={0} name={1}", model.getId(), model.getName());
         ProviderConfig providerConfig = new ProviderConfig();
-        String         user           = model.get("user");
-        String         password       = model.get("password");
-        String         url            = model.get("url");
         RDBMS          rdbms          = RDBMS.getByDescription(model.get("rdbms"));
-        providerConfig.dataSourceProvider.configure(url, Objects.requireNonNull(rdbms), user, password, model.getName());
+        providerConfig.dataSourceProvider = previous == null ? new DataSourceProvider() : previous.dataSourceProvider;
+        providerConfig.dataSourceConfigurations = dataSourceConfigurations(model);
+        providerConfig.dataSourceProvider.configure(providerConfig.dataSourceConfigurations);
         providerConfig.queryConfigurations = new QueryConfigurations(
                 model.get("count"),
                 model.get("listAll"),
@@ -77,23 +182,173 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                 model.get("allowKeycloakDelete", false),
                 model.get("allowDatabaseToOverwriteKeycloak", false),
                 model.get("updateEmailAddress"),
-                model.get("updateCredentials")
+                model.get("updateCredentials"),
+                model.get("findRoleMappings"),
+                model.get("approximateCountTable"),
+                model.get("windowCount", false),
+                model.get("attributeSearch", true),
+                model.get("batchArrayType"),
+                model.get("streamResults", false),
+                model.get("streamFetchSize", 500),
+                model.get("warmUpQuery"),
+                model.get("warmUpDays", 30),
+                model.get("changeFeedQuery"),
+                model.get("changeFeedInterval", 30),
+                model.getConfig().getList("parameterTypes")
+        );
+        providerConfig.cacheConfigurations = new CacheConfigurations(
+                model.get("roleMappingCacheTtl", 300) * 1000L,
+                model.get("countCacheTtl", 10) * 1000L,
+                model.get("maxCachedUsers", 100000),
+                model.get("searchIndex", false),
+                model.get("loginIndexFile"),
+                model.get("userCacheTtl", 0) * 1000L,
+                model.get("snapshotFile"),
+                model.get("minUserTtl", 1) * 1000L,
+                model.get("maxUserTtl", 0) * 1000L,
+                model.get("staleTtl", 3600) * 1000L,
+                model.get("staleBudget", 200)
         );
+        if (previous != null && previous.queryConfigurations.equals(providerConfig.queryConfigurations)
+            && previous.cacheConfigurations.equals(providerConfig.cacheConfigurations)) {
+            providerConfig.repository = previous.repository;
+            return providerConfig;
+        }
+        // the bus is looked up on every publish, as it is replaced once the cluster is available
+        providerConfig.repository = new UserRepository(model.getId(), providerConfig.dataSourceProvider, providerConfig.queryConfigurations,
+                                                       providerConfig.cacheConfigurations, event -> invalidationBus.publish(event));
+        providerConfig.repository.warmUp();
+        providerConfig.repository.onUsersChanged(users -> evictFromUserCache(model, providerConfig.repository, users));
+        providerConfig.repository.startChangeFeed();
         return providerConfig;
     }
     
+    private static DataSourceConfigurations dataSourceConfigurations(ComponentModel model) {
+        RDBMS rdbms           = Objects.requireNonNull(RDBMS.getByDescription(model.get("rdbms")));
+        int   maximumPoolSize = model.get("maximumPoolSize", 10);
+        return new DataSourceConfigurations(
+                model.get("url"),
+                model.getConfig().getList("failoverUrls"),
+                model.get("replicaUrl"),
+                rdbms,
+                model.get("user"),
+                model.get("password"),
+                model.getName(),
+                model.get("readYourWritesWindow", 5) * 1000L,
+                model.get("connectionTimeout", 5000),
+                model.get("queryTimeout", 10),
+                model.get("healthCheckInterval", 5) * 1000L,
+                maximumPoolSize,
+                model.get("minimumIdle", 2),
+                Map.of(OperationClass.LOOKUP, concurrency(model, "lookup", Math.max(1, maximumPoolSize * 2 / 5)),
+                       OperationClass.CREDENTIAL, concurrency(model, "credential", Math.max(1, maximumPoolSize / 5)),
+                       OperationClass.SEARCH, concurrency(model, "search", Math.max(1, maximumPoolSize / 5)),
+                       OperationClass.SYNC, concurrency(model, "sync", Math.max(1, Math.min(2, maximumPoolSize - 2)))),
+                Map.of(OperationClass.LOOKUP, model.get("lookupQueueTimeout", 1000L),
+                       OperationClass.CREDENTIAL, model.get("credentialQueueTimeout", 2000L),
+                       OperationClass.SEARCH, model.get("searchQueueTimeout", 5000L),
+                       OperationClass.SYNC, model.get("syncQueueTimeout", 60000L)),
+                model.get("drainTimeout", 30) * 1000L,
+                model.get("sharedPool", true),
+                model.get("maxConnections", 0),
+                model.get("adaptivePoolSize", false) ? model.get("poolSizingInterval", 10) * 1000L : 0L,
+                rdbms.getDriverProperties(model.getConfig().getList("driverProperties")),
+                model.get("statementCacheSize", 0),
+                Map.of(OperationClass.LOOKUP, connectionSettings(model, "lookup", 0),
+                       OperationClass.CREDENTIAL, connectionSettings(model, "credential", 0),
+                       OperationClass.SEARCH, connectionSettings(model, "search", 100),
+                       OperationClass.SYNC, connectionSettings(model, "sync", 1000))
+        );
+    }
+
+    /*
+     * Concurrency limit of an operation class; an empty setting falls back to the class's share of the pool: 40%
+     * for lookups, 20% each for credentials, searches and syncs, at least 1 (syncs at least 2 if the pool has more
+     * than 3 connections). Searches and syncs thus leave at least 60% of the pool to logins.
+     */
+    private static int concurrency(ComponentModel model, String operationClass, int defaultLimit) {
+        String limit = model.get(operationClass + "Concurrency");
+        return limit == null || limit.isBlank() ? defaultLimit : Integer.parseInt(limit.trim());
+    }
+
+    /*
+     * Rejects concurrency limits under which a class could hold more connections than the pool has, or searches
+     * and syncs together all of them, so logins would wait for admin work.
+     */
+    private static void validateConcurrency(DataSourceConfigurations configurations) {
+        Map<OperationClass, Integer> limits = configurations.getConcurrencyLimits();
+        int                          pool   = configurations.getMaximumPoolSize();
+        for (Map.Entry<OperationClass, Integer> limit : limits.entrySet()) {
+            if (limit.getValue() > pool) {
+                throw new IllegalArgumentException("The " + limit.getKey().name().toLowerCase(Locale.ROOT) + " concurrency of " + limit.getValue() + " exceeds the maximum pool size of " + pool);
+            }
+        }
+        int search = limits.getOrDefault(OperationClass.SEARCH, 0);
+        int sync   = limits.getOrDefault(OperationClass.SYNC, 0);
+        if (search > 0 && sync > 0 && search + sync >= pool) {
+            throw new IllegalArgumentException("Search and sync concurrency (" + search + " + " + sync + ") must leave connections of the maximum pool size of " + pool + " to logins");
+        }
+    }
+
+    /*
+     * Settings of the read queries of an operation class; a query timeout of 0 falls back to the general one.
+     */
+    private static ConnectionSettings connectionSettings(ComponentModel model, String operationClass, int defaultFetchSize) {
+        int queryTimeout = model.get(operationClass + "QueryTimeout", 0);
+        return new ConnectionSettings(model.get("readOnlyReads", false),
+                                      ConnectionSettings.isolationByName(model.get(operationClass + "Isolation")),
+                                      queryTimeout > 0 ? queryTimeout : model.get("queryTimeout", 10),
+                                      model.get(operationClass + "FetchSize", defaultFetchSize));
+    }
+    
+    /*
+     * Checks the concurrency limits and that the primary database is reachable; the configuration is applied in
+     * onUpdate or on first use.
+     */
     @Override
     public void validateConfiguration(KeycloakSession session, RealmModel realm, ComponentModel model) throws ComponentValidationException {
         try {
-            ProviderConfig old = providerConfigPerInstance.put(model.getId(), configure(model));
-            if (old != null) {
-                old.dataSourceProvider.close();
-            }
+            QueryConfigurations.parseParameterTypes(model.getConfig().getList("parameterTypes"));
+            DataSourceConfigurations configurations = dataSourceConfigurations(model);
+            validateConcurrency(configurations);
+            DataSourceProvider.testConnection(configurations);
         } catch (Exception e) {
             throw new ComponentValidationException(e.getMessage(), e);
         }
     }
     
+    /*
+     * Applies changed settings without downtime: the new pool is filled before it takes over and the old one is
+     * drained; the caches of the component start empty only if query or cache settings changed.
+     */
+    @Override
+    public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+        synchronized (configureLock(newModel.getId())) {
+            ProviderConfig previous = providerConfigPerInstance.get(newModel.getId());
+            ProviderConfig updated  = configure(newModel, previous);
+            providerConfigPerInstance.put(newModel.getId(), updated);
+            if (previous != null && previous.repository != updated.repository) {
+                previous.repository.close();
+            }
+        }
+    }
+
+    /*
+     * Releases the pools, caches and background jobs of a removed component right away instead of on shutdown.
+     */
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        ProviderConfig removed;
+        synchronized (configureLock(model.getId())) {
+            removed = providerConfigPerInstance.remove(model.getId());
+        }
+        configureLocks.remove(model.getId());
+        if (removed != null) {
+            removed.repository.close();
+            removed.dataSourceProvider.close();
+        }
+    }
+
     @Override
     public String getId() {
         return "sql-db-user-provider";
@@ -101,7 +356,9 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
     
     @Override
     public List<ProviderConfigProperty> getConfigProperties() {
-        return ProviderConfigurationBuilder.create()
+        // split into two chains, a single chain of this length overflows the stack of javac
+        ProviderConfigurationBuilder builder = ProviderConfigurationBuilder.create();
+        builder
                                                 //DATABASE
                                                 .property()
                                                 .name("url")
@@ -111,6 +368,253 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                                 .defaultValue("jdbc:sqlserver://192.168.1.89;databaseName=TestDB;trustServerCertificate=true")
                                                 .add()
                                                 .property()
+                                                .name("failoverUrls")
+                                                .label("Failover JDBC URLs (optional)")
+                                                .helpText("JDBC Connection Strings of databases to fail over to, in order, when the JDBC URL above is unavailable. They use the same user and password. The provider fails back to the first available database automatically.")
+                                                .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                                                .add()
+                                                .property()
+                                                .name("statementCacheSize")
+                                                .label("Statement cache size per connection")
+                                                .helpText("Number of prepared statements kept open per connection, so the configured queries are prepared once per connection instead of for every query. Useful for drivers without a statement cache of their own, e.g. jTDS. 0 disables the cache.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("0")
+                                                .add()
+                                                .property()
+                                                .name("connectionTimeout")
+                                                .label("Connection timeout (milliseconds)")
+                                                .helpText("Maximum time to wait for a database connection. Keep it short, logins wait for it while a database is down.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("5000")
+                                                .add()
+                                                .property()
+                                                .name("queryTimeout")
+                                                .label("Query timeout (seconds)")
+                                                .helpText("Maximum execution time of a single query. 0 disables the timeout.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("10")
+                                                .add()
+                                                .property()
+                                                .name("healthCheckInterval")
+                                                .label("Health check interval (seconds)")
+                                                .helpText("How often all databases are probed with the RDBMS test query. Unavailable databases are skipped until a probe succeeds again. 0 disables the probes.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("5")
+                                                .add()
+                                                .property()
+                                                .name("maximumPoolSize")
+                                                .label("Maximum pool size")
+                                                .helpText("Maximum number of connections per database.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("10")
+                                                .add()
+                                                .property()
+                                                .name("minimumIdle")
+                                                .label("Minimum idle connections")
+                                                .helpText("Number of connections kept open while idle.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("2")
+                                                .add()
+                                                .property()
+                                                .name("lookupConcurrency")
+                                                .label("Lookup concurrency")
+                                                .helpText("Maximum number of concurrent database operations for user lookups by id, login name and role mappings. Keeps other operations from taking all connections. Empty uses 40% of the maximum pool size. 0 is unlimited.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("")
+                                                .add()
+                                                .property()
+                                                .name("lookupQueueTimeout")
+                                                .label("Lookup queue timeout (milliseconds)")
+                                                .helpText("How long user lookups by id, login name and role mappings wait for a free slot before they are rejected.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("1000")
+                                                .add()
+                                                .property()
+                                                .name("credentialConcurrency")
+                                                .label("Credential concurrency")
+                                                .helpText("Maximum number of concurrent database operations for password checks and credential/email updates. Keeps other operations from taking all connections. Empty uses 20% of the maximum pool size. 0 is unlimited.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("")
+                                                .add()
+                                                .property()
+                                                .name("credentialQueueTimeout")
+                                                .label("Credential queue timeout (milliseconds)")
+                                                .helpText("How long password checks and credential/email updates wait for a free slot before they are rejected.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("2000")
+                                                .add()
+                                                .property()
+                                                .name("searchConcurrency")
+                                                .label("Search concurrency")
+                                                .helpText("Maximum number of concurrent database operations for admin console searches, listings and counts. Keeps other operations from taking all connections. Empty uses 20% of the maximum pool size. 0 is unlimited.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("")
+                                                .add()
+                                                .property()
+                                                .name("searchQueueTimeout")
+                                                .label("Search queue timeout (milliseconds)")
+                                                .helpText("How long admin console searches, listings and counts wait for a free slot before they are rejected.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("5000")
+                                                .add()
+                                                .property()
+                                                .name("syncConcurrency")
+                                                .label("Sync concurrency")
+                                                .helpText("Maximum number of concurrent database operations for user syncs, cache warm-up and change feed. Keeps other operations from taking all connections. A streamed user sync holds one slot until it has read all users, so keep at least 2 for the change feed and warm-up to run meanwhile. Empty uses 2 (1 for pools of up to 3 connections). 0 is unlimited.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("")
+                                                .add()
+                                                .property()
+                                                .name("syncQueueTimeout")
+                                                .label("Sync queue timeout (milliseconds)")
+                                                .helpText("How long user syncs, cache warm-up and change feed wait for a free slot before they are rejected.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("60000")
+                                                .add()
+                                                .property()
+                                                .name("readOnlyReads")
+                                                .label("Read-only connections for reads")
+                                                .helpText("Marks the connections of lookups, password hash queries, searches and syncs as read-only, which lets the database and driver skip write bookkeeping. Updates are not affected. The flag is set on every borrow and reset on return, which costs a round trip each with many drivers, so only enable it where the database gains more than that, e.g. to route reads to a replica.")
+                                                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                                                .defaultValue("false")
+                                                .add()
+                                                .property()
+                                                .name("lookupIsolation")
+                                                .label("Lookup isolation level")
+                                                .helpText("Transaction isolation level of user lookups by id, login name and role mappings. READ UNCOMMITTED or SNAPSHOT keep logins from waiting on row locks of batch jobs; SNAPSHOT requires ALLOW_SNAPSHOT_ISOLATION on the SQL Server database. READ COMMITTED SNAPSHOT is a database option (READ_COMMITTED_SNAPSHOT) and works with READ COMMITTED. Levels the driver does not support are ignored. A level other than the driver default is set on every borrow and reset on return, a round trip each; prefer the database default where it fits.")
+                                                .type(ProviderConfigProperty.LIST_TYPE)
+                                                .options(ConnectionSettings.getIsolationNames())
+                                                .defaultValue("Driver default")
+                                                .add()
+                                                .property()
+                                                .name("lookupQueryTimeout")
+                                                .label("Lookup query timeout (seconds)")
+                                                .helpText("Maximum execution time of user lookups by id, login name and role mappings. 0 uses the general query timeout.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("0")
+                                                .add()
+                                                .property()
+                                                .name("lookupFetchSize")
+                                                .label("Lookup fetch size")
+                                                .helpText("Rows fetched per round trip for user lookups by id, login name and role mappings. 0 uses the driver default.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("0")
+                                                .add()
+                                                .property()
+                                                .name("credentialIsolation")
+                                                .label("Credential isolation level")
+                                                .helpText("Transaction isolation level of password hash queries, see Lookup isolation level.")
+                                                .type(ProviderConfigProperty.LIST_TYPE)
+                                                .options(ConnectionSettings.getIsolationNames())
+                                                .defaultValue("Driver default")
+                                                .add()
+                                                .property()
+                                                .name("credentialQueryTimeout")
+                                                .label("Credential query timeout (seconds)")
+                                                .helpText("Maximum execution time of password hash queries. 0 uses the general query timeout.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("0")
+                                                .add()
+                                                .property()
+                                                .name("credentialFetchSize")
+                                                .label("Credential fetch size")
+                                                .helpText("Rows fetched per round trip for password hash queries. 0 uses the driver default.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("0")
+                                                .add()
+                                                .property()
+                                                .name("searchIsolation")
+                                                .label("Search isolation level")
+                                                .helpText("Transaction isolation level of admin console searches and counts, see Lookup isolation level.")
+                                                .type(ProviderConfigProperty.LIST_TYPE)
+                                                .options(ConnectionSettings.getIsolationNames())
+                                                .defaultValue("Driver default")
+                                                .add()
+                                                .property()
+                                                .name("searchQueryTimeout")
+                                                .label("Search query timeout (seconds)")
+                                                .helpText("Maximum execution time of admin console searches and counts. 0 uses the general query timeout.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("0")
+                                                .add()
+                                                .property()
+                                                .name("searchFetchSize")
+                                                .label("Search fetch size")
+                                                .helpText("Rows fetched per round trip for admin console searches and counts. 0 uses the driver default.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("100")
+                                                .add()
+                                                .property()
+                                                .name("syncIsolation")
+                                                .label("Sync isolation level")
+                                                .helpText("Transaction isolation level of user listings of the sync and the warm-up, see Lookup isolation level.")
+                                                .type(ProviderConfigProperty.LIST_TYPE)
+                                                .options(ConnectionSettings.getIsolationNames())
+                                                .defaultValue("Driver default")
+                                                .add()
+                                                .property()
+                                                .name("syncQueryTimeout")
+                                                .label("Sync query timeout (seconds)")
+                                                .helpText("Maximum execution time of user listings of the sync and the warm-up. 0 uses the general query timeout.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("0")
+                                                .add()
+                                                .property()
+                                                .name("syncFetchSize")
+                                                .label("Sync fetch size")
+                                                .helpText("Rows fetched per round trip for user listings of the sync and the warm-up. 0 uses the driver default.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("1000")
+                                                .add()
+                                                .property()
+                                                .name("drainTimeout")
+                                                .label("Drain timeout (seconds)")
+                                                .helpText("When the settings are changed, queries still running on the old connection pool may finish for this time before it is closed.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("30")
+                                                .add()
+                                                .property()
+                                                .name("sharedPool")
+                                                .label("Share connection pool")
+                                                .helpText("Share the connection pool with other components that use the same JDBC URL, user and RDBMS, e.g. one component per realm. Only components with the same connection timeout, minimum idle and adaptive sizing settings share a pool; it uses the largest maximum pool size of all of them.")
+                                                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                                                .defaultValue("true")
+                                                .add()
+                                                .property()
+                                                .name("maxConnections")
+                                                .label("Max concurrent connections of this component")
+                                                .helpText("Limits the connections this component may use at the same time, so one realm can not take a shared pool away from the others. 0 means no limit beyond the concurrency per operation class.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("0")
+                                                .add()
+                                                .property()
+                                                .name("adaptivePoolSize")
+                                                .label("Adaptive pool size")
+                                                .helpText("Resizes the connection pool at runtime between 'Minimum idle connections' and 'Maximum pool size', from the measured connection checkouts, hold and wait times: it grows when logins have to wait for connections and shrinks when the load goes down.")
+                                                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                                                .defaultValue("false")
+                                                .add()
+                                                .property()
+                                                .name("poolSizingInterval")
+                                                .label("Pool sizing interval (seconds)")
+                                                .helpText("How often the adaptive pool size is recalculated.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("10")
+                                                .add()
+                                                .property()
+                                                .name("replicaUrl")
+                                                .label("Read replica JDBC URL (optional)")
+                                                .helpText("JDBC Connection String of a read replica, using the same user and password. Lookups, searches, counts and password hash queries are sent to it, updates go to the primary. Leave empty to read from the primary.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .add()
+                                                .property()
+                                                .name("readYourWritesWindow")
+                                                .label("Read-your-writes window (seconds)")
+                                                .helpText("After an update of a user, that user's reads go to the primary for this time, so the change is visible despite replication lag.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("5")
+                                                .add()
+                                                .property()
                                                 .name("user")
                                                 .label("JDBC Connection User")
                                                 .helpText("JDBC Connection User")
@@ -133,6 +637,12 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                                 .defaultValue(RDBMS.MSSQL.getDesc())
                                                 .add()
                                                 .property()
+                                                .name("driverProperties")
+                                                .label("JDBC driver properties (optional)")
+                                                .helpText("Each RDBMS comes with driver properties tuned for lookups and logins. Entries in the form name=value override or add to them, name= removes one. Defaults: " + RDBMS.describeDriverProfiles())
+                                                .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                                                .add()
+                                                .property()
                                                 .name("allowKeycloakDelete")
                                                 .label("Allow Keycloak's User Delete")
                                                 .helpText("By default, clicking Delete on a user in Keycloak is not allowed.  Activate this option to allow to Delete Keycloak's version of the user (does not touch the user record in the linked RDBMS), e.g. to clear synching issues and allow the user to be synced from scratch from the RDBMS on next use, in Production or for testing.")
@@ -143,10 +653,11 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                                 .name("allowDatabaseToOverwriteKeycloak")
                                                 .label("Allow DB Attributes to Overwrite Keycloak")
                                                 // Technical details for the following comment: we aggregate both the existing Keycloak version and the DB version of an attribute in a Set, but since e.g. email is not a list of values on the Keycloak User, the new email is never set on it.
-                                                .helpText("By default, once a user is loaded in Keycloak, its attributes (e.g. 'email') stay as they are in Keycloak even if an attribute of the same name now returns a different value through the query.  Activate this option to have all attributes set in the SQL query to always overwrite the existing user attributes in Keycloak (e.g. if Keycloak user has email 'test@test.com' but the query fetches a field named 'email' that has a value 'example@exemple.com', the Keycloak user will now have email attribute = 'example@exemple.com'). This behavior works with NO_CACHE configuration. In case you set this flag under a cached configuration, the user attributes will be reload if: 1) the cached value is older than 500ms and 2) username or e-mail does not match cached values.")
+                                                .helpText("By default, once a user is loaded in Keycloak, its attributes (e.g. 'email') stay as they are in Keycloak even if an attribute of the same name now returns a different value through the query.  Activate this option to have all attributes set in the SQL query to always overwrite the existing user attributes in Keycloak (e.g. if Keycloak user has email 'test@test.com' but the query fetches a field named 'email' that has a value 'example@exemple.com', the Keycloak user will now have email attribute = 'example@exemple.com'). This behavior works with NO_CACHE configuration. In case you set this flag under a cached configuration, the user attributes are reloaded on login if 1) the cached value is older than the user's adaptive TTL (see 'Adaptive user TTL maximum'; 500ms while the adaptive TTL is disabled) and 2) username, e-mail, first or last name do not match the cached values.")
                                                 .type(ProviderConfigProperty.BOOLEAN_TYPE)
                                                 .defaultValue("false")
-                                                .add()
+                                                .add();
+        return builder
 
                                                 //QUERIES
 
@@ -157,6 +668,26 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                                 .type(ProviderConfigProperty.STRING_TYPE)
                                                 .defaultValue("select count(*) from tblKundenPasswoerter")
                                                 .add()
+                                                .property()
+                                                .name("countCacheTtl")
+                                                .label("User count cache TTL (seconds)")
+                                                .helpText("How long user counts (total, per search term and per group) are cached. Set to 0 to count on every request.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("10")
+                                                .add()
+                                                .property()
+                                                .name("windowCount")
+                                                .label("Count with paged searches")
+                                                .helpText("Activate this option to return the total number of matches with each paged user listing (count(*) over()) and reuse it for the following user count request with the same search. Requires window function support, ignored for MySQL.")
+                                                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                                                .defaultValue("false")
+                                                .add()
+                                                .property()
+                                                .name("approximateCountTable")
+                                                .label("Approximate count table (optional)")
+                                                .helpText("For very large tables: name of the user table whose row estimate from the database's catalog statistics is reported as total user count instead of running the count query. Leave empty for exact counts.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .add()
 
                                                 .property()
                                                 .name("listAll")
@@ -233,6 +764,126 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                                             "cross join (select ? as login_name) const where kd.strKundenkuerzel = login_name or name = login_name or strEmail = login_name")
                                                 .add()
 
+                                                .property()
+                                                .name("attributeSearch")
+                                                .label("Search by user fields")
+                                                .helpText("When a search asks for specific fields (username, email, first or last name) instead of a search term, filter the 'List All Users' query by these columns: exact searches compare with '=', all others match the beginning of the value. The columns are referenced by their aliases, so indexes on the underlying columns are used.")
+                                                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                                                .defaultValue("true")
+                                                .add()
+
+                                                .property()
+                                                .name("searchIndex")
+                                                .label("In-memory search index")
+                                                .helpText("Activate this option to answer plain search terms (e.g. \"ali\" or \"ali*\") from an in-memory prefix index of usernames, emails and names; terms with other wildcards, quotes or several words use the search term query. The index is built by the periodic (or manual) user sync and kept up to date by lookups; until the first sync the search term query is used. Matching users are loaded from the database by id in one query.")
+                                                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                                                .defaultValue("false")
+                                                .add()
+
+                                                .property()
+                                                .name("batchArrayType")
+                                                .label("Batch lookup array type (PostgreSQL only)")
+                                                .helpText("SQL type of the \"id\" column (e.g. varchar, uuid, bigint). When set, lookups of many users at once bind all ids as a single array parameter (= any(?)). Otherwise they are split into \"in\" lists sized for the selected RDBMS.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .add()
+
+                                                .property()
+                                                .name("streamResults")
+                                                .label("Stream large results")
+                                                .helpText("Activate this option to read unpaged searches and the user sync directly from the database cursor instead of loading all rows into memory first.")
+                                                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                                                .defaultValue("false")
+                                                .add()
+                                                .property()
+                                                .name("streamFetchSize")
+                                                .label("Stream fetch size")
+                                                .helpText("Number of rows fetched from the database per round trip when streaming results (ignored for MySQL, which streams row by row).")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("500")
+                                                .add()
+
+                                                .property()
+                                                .name("userCacheTtl")
+                                                .label("User cache TTL (seconds)")
+                                                .helpText("How long user rows read from the database are kept by the provider and reused for lookups by id, username or email. Set to 0 to disable the cache.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("0")
+                                                .add()
+                                                .property()
+                                                .name("staleTtl")
+                                                .label("Stale user data TTL (seconds)")
+                                                .helpText("How long expired entries of the user cache are kept as last known data. While the database is unavailable or slower than the stale budget, lookups are answered with it and the user is refreshed in the background. Requires the user cache (user cache TTL or adaptive user TTL maximum above 0). 0 disables it.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("3600")
+                                                .add()
+                                                .property()
+                                                .name("staleBudget")
+                                                .label("Stale budget (milliseconds)")
+                                                .helpText("How long a lookup waits for the database before it returns the last known data of the user.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("200")
+                                                .add()
+                                                .property()
+                                                .name("minUserTtl")
+                                                .label("Adaptive user TTL minimum (seconds)")
+                                                .helpText("Lower bound of the adaptive time to live of cached user data. Only used if the maximum is set.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("1")
+                                                .add()
+                                                .property()
+                                                .name("maxUserTtl")
+                                                .label("Adaptive user TTL maximum (seconds)")
+                                                .helpText("Enables a time to live per user for the user cache and for reloading Keycloak's cached users on login: it doubles each time a refresh finds the user's row unchanged and is halved when the row changed, between minimum and maximum. " +
+                                                          "Replaces the fixed user cache TTL. 0 disables it.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("0")
+                                                .add()
+                                                .property()
+                                                .name("warmUpQuery")
+                                                .label("Warm-up SQL query (optional)")
+                                                .helpText("SQL query returning the \"id\" of recently active users, which are loaded into the user cache in the background when the provider starts (requires a user cache TTL). If the query contains a '?', it is bound to the timestamp 'Warm-up days' ago. Leave empty to disable.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .add()
+                                                .property()
+                                                .name("warmUpDays")
+                                                .label("Warm-up days")
+                                                .helpText("Users active within this number of days are loaded by the warm-up query.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("30")
+                                                .add()
+                                                .property()
+                                                .name("changeFeedQuery")
+                                                .label("Change feed SQL query (optional)")
+                                                .helpText("SQL query returning the changes of users after a sequence number, as columns \"seq\" (ascending) and \"id\" of the changed user, e.g. from an audit table: select seq, user_id as id from user_changes where seq > ? order by seq. " +
+                                                          "It is polled in the configured interval; changed users are evicted from the provider's and Keycloak's caches and reloaded. " + PARAMETER_PLACEHOLDER_HELP + "Leave empty to disable.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .add()
+                                                .property()
+                                                .name("changeFeedInterval")
+                                                .label("Change feed interval (seconds)")
+                                                .helpText("How often the change feed query is polled.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("30")
+                                                .add()
+                                                .property()
+                                                .name("parameterTypes")
+                                                .label("Query parameter types (optional)")
+                                                .helpText("Parameters are bound as strings by default. Declare the SQL types of a query's parameters in the form queryName=TYPE[,TYPE...], e.g. findById=BIGINT or findByUsername=VARCHAR, so the database compares them with the key columns without conversion and uses an index seek. Types: INTEGER, BIGINT, NUMERIC, VARCHAR, CHAR, NVARCHAR.")
+                                                .type(ProviderConfigProperty.MULTIVALUED_STRING_TYPE)
+                                                .add()
+                                                .property()
+                                                .name("snapshotFile")
+                                                .label("User snapshot file (optional)")
+                                                .helpText("Path of a file keeping a local copy of the user rows read by lookups and the user sync. After a restart it pre-warms the user cache, and while the database is unreachable lookups are answered from it (read only). Leave empty to disable.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .add()
+                                                .property()
+                                                .name("loginIndexFile")
+                                                .label("Login index file (optional)")
+                                                .helpText("Path of a file in which the user sync stores an index of usernames and emails to user ids outside the Java heap. Logins then load the user by id instead of running the username/email query; unknown names still use the query. The file survives restarts. Leave empty to disable.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .add()
+
                                                 .property()
                                                 .name("updateCredentials")
                                                 .label("Update a user's credentials")
@@ -266,6 +917,27 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
                                                 .defaultValue("select hash, salt from kunden_details where kunden_nr = ?")
                                                 .add()
                                                 .property()
+                                                .name("findRoleMappings")
+                                                .label("Find role mappings SQL query (optional)")
+                                                .helpText("SQL query returning the roles granted to a user by the database: \"role\" (role name) and \"client\" (client id for client roles, empty for realm roles)." +
+                                                          String.format(PARAMETER_HELP, "user id") + PARAMETER_PLACEHOLDER_HELP + "Roles that do not exist in the realm are ignored. Leave empty to keep roles in Keycloak's federated storage only.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .add()
+                                                .property()
+                                                .name("roleMappingCacheTtl")
+                                                .label("Role mapping cache TTL (seconds)")
+                                                .helpText("How long the role mappings read from the database are cached per user. Set to 0 to query the roles on every access.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("300")
+                                                .add()
+                                                .property()
+                                                .name("maxCachedUsers")
+                                                .label("Maximum cached users")
+                                                .helpText("Upper bound for the number of users held in each of the provider's caches.")
+                                                .type(ProviderConfigProperty.STRING_TYPE)
+                                                .defaultValue("100000")
+                                                .add()
+                                                .property()
                                                 .name("hashFunction")
                                                 .label("Password hash function")
                                                 .helpText("Hash type used to match password (md* e sha* uses hex hash digest)")
@@ -295,45 +967,46 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
 
             provider = (DBUserStorageProvider) session.getComponentProvider(UserStorageProvider.class, userStorageProviderModel.getProviderId());
 
-            List<Map<String, String>> users = provider.getAllUsers();
-            Iterator<Map<String, String>> userIterator = users.iterator();
-            log.infov("Number of users to sync: " + (long) users.size());
+            try (Stream<Map<String, String>> users = provider.getAllUsersStream()) {
+                Iterator<Map<String, String>> userIterator = users.iterator();
 
-            while (userIterator.hasNext()) {
-                userCounter++;
-                final Map<String, String> federatedUser = userIterator.next();
-                final String fedUsername = federatedUser.get("username");
-                final Optional<String> fedLastName = Optional.ofNullable(federatedUser.get("lastName"));
-                final Optional<String> fedFirstName = Optional.ofNullable(federatedUser.get("firstName"));
-                final Optional<String> fedEmail = Optional.ofNullable(federatedUser.get("email"));
+                while (userIterator.hasNext()) {
+                    userCounter++;
+                    final Map<String, String> federatedUser = userIterator.next();
+                    final String fedUsername = federatedUser.get("username");
+                    final Optional<String> fedLastName = Optional.ofNullable(federatedUser.get("lastName"));
+                    final Optional<String> fedFirstName = Optional.ofNullable(federatedUser.get("firstName"));
+                    final Optional<String> fedEmail = Optional.ofNullable(federatedUser.get("email"));
 
-//                if(fedUsername.equals("1888")) {
-//                    UserModel existingLocalUser = session.users().getUserByUsername(realm, fedUsername);
+//                    if(fedUsername.equals("1888")) {
+//                        UserModel existingLocalUser = session.users().getUserByUsername(realm, fedUsername);
 
-                    UserModel existingLocalUser = provider.getUserByUsername(realm, fedUsername);
+                        UserModel existingLocalUser = provider.getUserByUsername(realm, fedUsername);
 
-                    if (fedEmail.isPresent() && !fedEmail.get().trim().equals(existingLocalUser.getEmail())) {
-                        log.infov("SYNC local:" + existingLocalUser.getEmail() + " new from federation: " + fedEmail.get());
-                        existingLocalUser.setEmail(fedEmail.get().trim());
-                        updated = true;
-                    }
-                    if (fedLastName.isPresent() && !fedLastName.get().trim().equals(existingLocalUser.getLastName())) {
-                        log.infov("SYNC local:" + existingLocalUser.getLastName() + " new from federation: " + fedLastName.get());
-                        existingLocalUser.setLastName(fedLastName.get().trim());
-                        updated = true;
+                        if (fedEmail.isPresent() && !fedEmail.get().trim().equals(existingLocalUser.getEmail())) {
+                            log.infov("SYNC local:" + existingLocalUser.getEmail() + " new from federation: " + fedEmail.get());
+                            existingLocalUser.setEmail(fedEmail.get().trim());
+                            updated = true;
+                        }
+                        if (fedLastName.isPresent() && !fedLastName.get().trim().equals(existingLocalUser.getLastName())) {
+                            log.infov("SYNC local:" + existingLocalUser.getLastName() + " new from federation: " + fedLastName.get());
+                            existingLocalUser.setLastName(fedLastName.get().trim());
+                            updated = true;
+                        }
+                        if (fedFirstName.isPresent() && !fedFirstName.get().trim().equals(existingLocalUser.getFirstName())) {
+                            log.infov("SYNC local:" + existingLocalUser.getFirstName() + " new from federation: " + fedFirstName.get());
+                            existingLocalUser.setFirstName(fedFirstName.get().trim());
+                            updated = true;
+                        }
+                        if (updated) {
+                            synchronizationResult.increaseUpdated();
+                            updated = false;
+                        }
                     }
-                    if (fedFirstName.isPresent() && !fedFirstName.get().trim().equals(existingLocalUser.getFirstName())) {
-                        log.infov("SYNC local:" + existingLocalUser.getFirstName() + " new from federation: " + fedFirstName.get());
-                        existingLocalUser.setFirstName(fedFirstName.get().trim());
-                        updated = true;
-                    }
-                    if (updated) {
-                        synchronizationResult.increaseUpdated();
-                        updated = false;
-                    }
-                }
-//            }
+//                }
+            }
             log.infov("Syncing of " + userCounter + " users completed.");
+            provider.getRepository().invalidateAll();
             UserCache cache = session.getProvider(UserCache.class);
             if (cache != null) cache.clear();
             session.getTransactionManager().commit();
@@ -356,7 +1029,10 @@ public class DBUserStorageProviderFactory implements UserStorageProviderFactory<
     }
 
     private static class ProviderConfig {
-        private final DataSourceProvider  dataSourceProvider = new DataSourceProvider();
+        private DataSourceProvider  dataSourceProvider;
+        private DataSourceConfigurations dataSourceConfigurations;
         private QueryConfigurations queryConfigurations;
+        private CacheConfigurations cacheConfigurations;
+        private UserRepository      repository;
     }
 }
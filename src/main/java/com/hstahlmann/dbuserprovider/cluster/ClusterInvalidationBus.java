@@ -0,0 +1,104 @@
+package com.hstahlmann.dbuserprovider.cluster;
+
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/*
+ * Sends invalidations through Keycloak's ClusterProvider, so every node of the cluster (in all data centers)
+ * evicts the users from its provider caches.
+ *
+ * Invalidations are sent by a background thread. Everything published while it sends is merged per component
+ * and sent with the next batch in a single session, so a burst of changes (e.g. a change feed run) costs a few
+ * cluster messages instead of a session and transaction per user.
+ */
+@JBossLog
+public class ClusterInvalidationBus implements InvalidationBus {
+
+    public static final String TASK_KEY = "sql-user-provider-invalidation";
+
+    private final KeycloakSessionFactory         sessionFactory;
+    private final Queue<UserInvalidationEvent>   pending   = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean                  scheduled = new AtomicBoolean();
+    private final ExecutorService                sender    = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "sql-user-provider-invalidations");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ClusterInvalidationBus(KeycloakSessionFactory sessionFactory, Consumer<UserInvalidationEvent> listener) {
+        this.sessionFactory = sessionFactory;
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+            if (cluster == null) {
+                log.warnv("No cluster provider available, provider caches are invalidated on this node only");
+                return;
+            }
+            cluster.registerListener(TASK_KEY, event -> {
+                if (event instanceof UserInvalidationEvent) {
+                    log.debugv("Received invalidation of {0}", event);
+                    listener.accept((UserInvalidationEvent) event);
+                }
+            });
+        });
+    }
+
+    @Override
+    public void publish(UserInvalidationEvent event) {
+        pending.add(event);
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                sender.execute(this::send);
+            } catch (RuntimeException e) {
+                scheduled.set(false);
+                log.warnv("Invalidation of {0} could not be sent to the cluster: {1}", event, e.getMessage());
+            }
+        }
+    }
+
+    private void send() {
+        // cleared before draining, so events published from now on schedule the next batch
+        scheduled.set(false);
+        List<UserInvalidationEvent> events = new ArrayList<>();
+        for (UserInvalidationEvent event = pending.poll(); event != null; event = pending.poll()) {
+            events.add(event);
+        }
+        if (events.isEmpty()) {
+            return;
+        }
+        List<UserInvalidationEvent> batch = UserInvalidationEvent.merge(events);
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+                if (cluster != null) {
+                    batch.forEach(event -> cluster.notify(TASK_KEY, event, true, ClusterProvider.DCNotify.ALL_DCS));
+                }
+            });
+            log.debugv("Sent {0} invalidations as {1} cluster events", events.size(), batch.size());
+        } catch (RuntimeException e) {
+            log.warnv("Invalidation of {0} could not be sent to the cluster: {1}", batch, e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        sender.execute(this::send);
+        sender.shutdown();
+        try {
+            sender.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
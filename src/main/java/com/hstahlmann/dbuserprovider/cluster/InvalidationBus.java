@@ -0,0 +1,16 @@
+package com.hstahlmann.dbuserprovider.cluster;
+
+/*
+ * Distributes user invalidations of the provider's caches to all nodes. The sending node evicts its own caches
+ * directly, the bus only delivers to the other nodes.
+ */
+public interface InvalidationBus {
+
+    void publish(UserInvalidationEvent event);
+
+    /*
+     * Sends what is still pending and releases the resources of the bus.
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,23 @@
+package com.hstahlmann.dbuserprovider.cluster;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/*
+ * Delivers invalidations to listeners in the same JVM. Used until the Keycloak cluster is available and as a
+ * stand-in for several nodes when running a single instance.
+ */
+public class LocalInvalidationBus implements InvalidationBus {
+
+    private final List<Consumer<UserInvalidationEvent>> listeners = new CopyOnWriteArrayList<>();
+
+    public void addListener(Consumer<UserInvalidationEvent> listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void publish(UserInvalidationEvent event) {
+        listeners.forEach(listener -> listener.accept(event));
+    }
+}
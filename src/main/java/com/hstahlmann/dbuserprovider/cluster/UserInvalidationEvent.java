@@ -0,0 +1,73 @@
+package com.hstahlmann.dbuserprovider.cluster;
+
+import lombok.Getter;
+import org.keycloak.cluster.ClusterEvent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Tells the other nodes which users of a provider component changed. Users are identified by external id or, when
+ * the id is not known where the change happened (e.g. credential updates by username), by login name.
+ */
+@Getter
+public class UserInvalidationEvent implements ClusterEvent {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String      componentId;
+    private final Set<String> ids;
+    private final Set<String> logins;
+    private final boolean     all;
+
+    private UserInvalidationEvent(String componentId, Set<String> ids, Set<String> logins, boolean all) {
+        this.componentId = componentId;
+        this.ids = ids;
+        this.logins = logins;
+        this.all = all;
+    }
+
+    public static UserInvalidationEvent users(String componentId, Set<String> ids, Set<String> logins) {
+        return new UserInvalidationEvent(componentId, Set.copyOf(ids), Set.copyOf(logins), false);
+    }
+
+    public static UserInvalidationEvent allUsers(String componentId) {
+        return new UserInvalidationEvent(componentId, Set.of(), Set.of(), true);
+    }
+
+    /*
+     * Combines invalidations into one per component, so a burst of changes is sent as few cluster messages.
+     * Invalidating all users of a component covers its single users.
+     */
+    public static List<UserInvalidationEvent> merge(Collection<UserInvalidationEvent> events) {
+        Map<String, List<UserInvalidationEvent>> perComponent = new LinkedHashMap<>();
+        events.forEach(event -> perComponent.computeIfAbsent(event.componentId, id -> new ArrayList<>()).add(event));
+        List<UserInvalidationEvent> merged = new ArrayList<>(perComponent.size());
+        perComponent.forEach((componentId, componentEvents) -> {
+            if (componentEvents.size() == 1) {
+                merged.add(componentEvents.get(0));
+            } else if (componentEvents.stream().anyMatch(UserInvalidationEvent::isAll)) {
+                merged.add(allUsers(componentId));
+            } else {
+                Set<String> ids    = new HashSet<>();
+                Set<String> logins = new HashSet<>();
+                componentEvents.forEach(event -> {
+                    ids.addAll(event.ids);
+                    logins.addAll(event.logins);
+                });
+                merged.add(users(componentId, ids, logins));
+            }
+        });
+        return merged;
+    }
+
+    @Override
+    public String toString() {
+        return all ? "all users of " + componentId : "users " + ids + " " + logins + " of " + componentId;
+    }
+}
@@ -0,0 +1,45 @@
+package com.hstahlmann.dbuserprovider.model;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+@Getter
+@EqualsAndHashCode
+public class CacheConfigurations {
+
+    private final long roleMappingCacheTtlMillis;
+    private final long countCacheTtlMillis;
+    private final int  maxCachedUsers;
+    private final boolean searchIndex;
+    private final String loginIndexFile;
+    private final long userCacheTtlMillis;
+    private final String snapshotFile;
+    private final long minUserTtlMillis;
+    private final long maxUserTtlMillis;
+    private final long staleTtlMillis;
+    private final long staleBudgetMillis;
+
+    public CacheConfigurations(long roleMappingCacheTtlMillis, long countCacheTtlMillis, int maxCachedUsers, boolean searchIndex, String loginIndexFile,
+                               long userCacheTtlMillis, String snapshotFile, long minUserTtlMillis, long maxUserTtlMillis,
+                               long staleTtlMillis, long staleBudgetMillis) {
+        this.roleMappingCacheTtlMillis = roleMappingCacheTtlMillis;
+        this.countCacheTtlMillis = countCacheTtlMillis;
+        this.maxCachedUsers = maxCachedUsers;
+        this.searchIndex = searchIndex;
+        this.loginIndexFile = loginIndexFile;
+        this.userCacheTtlMillis = userCacheTtlMillis;
+        this.snapshotFile = snapshotFile;
+        this.minUserTtlMillis = minUserTtlMillis;
+        this.maxUserTtlMillis = maxUserTtlMillis;
+        this.staleTtlMillis = staleTtlMillis;
+        this.staleBudgetMillis = staleBudgetMillis;
+    }
+
+    public boolean hasSnapshotFile() {
+        return snapshotFile != null && !snapshotFile.isBlank();
+    }
+
+    public boolean hasLoginIndexFile() {
+        return loginIndexFile != null && !loginIndexFile.isBlank();
+    }
+}
@@ -0,0 +1,72 @@
+package com.hstahlmann.dbuserprovider.model;
+
+import com.hstahlmann.dbuserprovider.persistence.ConnectionSettings;
+import com.hstahlmann.dbuserprovider.persistence.OperationClass;
+import com.hstahlmann.dbuserprovider.persistence.RDBMS;
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@Getter
+public class DataSourceConfigurations {
+
+    private final String       url;
+    private final List<String> failoverUrls;
+    private final String       replicaUrl;
+    private final RDBMS        rdbms;
+    private final String       user;
+    private final String       password;
+    private final String       name;
+    private final long         readYourWritesWindowMillis;
+    private final long         connectionTimeoutMillis;
+    private final int          queryTimeoutSeconds;
+    private final long         healthCheckIntervalMillis;
+    private final int          maximumPoolSize;
+    private final int          minimumIdle;
+    private final Map<OperationClass, Integer> concurrencyLimits;
+    private final Map<OperationClass, Long>    queueTimeoutsMillis;
+    private final long         drainTimeoutMillis;
+    private final boolean      sharedPool;
+    private final int          maxConnections;
+    private final long         poolSizingIntervalMillis;
+    private final Map<String, String> driverProperties;
+    private final int          statementCacheSize;
+    private final Map<OperationClass, ConnectionSettings> connectionSettings;
+
+    public DataSourceConfigurations(String url, List<String> failoverUrls, String replicaUrl, RDBMS rdbms, String user, String password, String name,
+                                    long readYourWritesWindowMillis, long connectionTimeoutMillis, int queryTimeoutSeconds, long healthCheckIntervalMillis,
+                                    int maximumPoolSize, int minimumIdle, Map<OperationClass, Integer> concurrencyLimits, Map<OperationClass, Long> queueTimeoutsMillis,
+                                    long drainTimeoutMillis, boolean sharedPool, int maxConnections,
+                                    long poolSizingIntervalMillis, Map<String, String> driverProperties,
+                                    int statementCacheSize, Map<OperationClass, ConnectionSettings> connectionSettings) {
+        this.url = url;
+        this.failoverUrls = failoverUrls == null ? List.of() : List.copyOf(failoverUrls);
+        this.replicaUrl = replicaUrl;
+        this.rdbms = rdbms;
+        this.user = user;
+        this.password = password;
+        this.name = name;
+        this.readYourWritesWindowMillis = readYourWritesWindowMillis;
+        this.connectionTimeoutMillis = connectionTimeoutMillis;
+        this.queryTimeoutSeconds = queryTimeoutSeconds;
+        this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+        this.maximumPoolSize = maximumPoolSize;
+        this.minimumIdle = minimumIdle;
+        this.concurrencyLimits = Map.copyOf(concurrencyLimits);
+        this.queueTimeoutsMillis = Map.copyOf(queueTimeoutsMillis);
+        this.drainTimeoutMillis = drainTimeoutMillis;
+        this.sharedPool = sharedPool;
+        this.maxConnections = maxConnections;
+        this.poolSizingIntervalMillis = poolSizingIntervalMillis;
+        this.driverProperties = driverProperties == null ? Map.of() : Collections.unmodifiableMap(new LinkedHashMap<>(driverProperties));
+        this.statementCacheSize = statementCacheSize;
+        this.connectionSettings = Map.copyOf(connectionSettings);
+    }
+
+    public boolean hasReplicaUrl() {
+        return replicaUrl != null && !replicaUrl.isBlank();
+    }
+}
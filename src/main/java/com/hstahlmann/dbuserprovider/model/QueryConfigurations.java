@@ -1,10 +1,25 @@
 package com.hstahlmann.dbuserprovider.model;
 
+import com.hstahlmann.dbuserprovider.persistence.ParameterType;
 import com.hstahlmann.dbuserprovider.persistence.RDBMS;
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+@EqualsAndHashCode
 public class QueryConfigurations {
 
+    // names of the queries parameter types can be declared for, as in the component configuration
+    private static final List<String> QUERY_NAMES = List.of("count", "listAll", "findById", "findByUsername", "findByUsernameOrEmail", "findBySearchTerm",
+                                                            "findPasswordHash", "findPasswordHashUsernameOnly", "findRoleMappings", "updateEmailAddress",
+                                                            "updateCredentials", "warmUpQuery", "changeFeedQuery");
+
     @Getter
     private final String count;
     @Getter
@@ -29,10 +44,37 @@ public class QueryConfigurations {
     private final boolean allowDatabaseToOverwriteKeycloak;
     private final String updateEmailAddress;
     private final String updateCredentials;
+    @Getter
+    private final String findRoleMappings;
+    @Getter
+    private final String approximateCountTable;
+    private final boolean windowCount;
+    @Getter
+    private final boolean attributeSearch;
+    @Getter
+    private final String batchArrayType;
+    @Getter
+    private final boolean streamResults;
+    @Getter
+    private final int streamFetchSize;
+    @Getter
+    private final String warmUpQuery;
+    @Getter
+    private final int warmUpDays;
+    @Getter
+    private final String changeFeedQuery;
+    @Getter
+    private final int changeFeedInterval;
+    // configured SQL text -> types of its parameters, in order
+    private final Map<String, List<ParameterType>> parameterTypes;
 
     public QueryConfigurations(String count, String listAll, String findById, String findByUsername, String findByUsernameOrEmail, String findBySearchTerm, String findPasswordHash,
                                String findPasswordHashUsernameOnly, String hashFunction, RDBMS RDBMS, boolean allowKeycloakDelete,
-                               boolean allowDatabaseToOverwriteKeycloak, String updateEmailAddress, String updateCredentials) {
+                               boolean allowDatabaseToOverwriteKeycloak, String updateEmailAddress, String updateCredentials, String findRoleMappings,
+                               String approximateCountTable, boolean windowCount, boolean attributeSearch,
+                               String batchArrayType, boolean streamResults, int streamFetchSize,
+                               String warmUpQuery, int warmUpDays, String changeFeedQuery, int changeFeedInterval,
+                               List<String> parameterTypeDeclarations) {
         this.count = count;
         this.listAll = listAll;
         this.findById = findById;
@@ -47,6 +89,85 @@ public class QueryConfigurations {
         this.allowDatabaseToOverwriteKeycloak = allowDatabaseToOverwriteKeycloak;
         this.updateEmailAddress = updateEmailAddress;
         this.updateCredentials = updateCredentials;
+        this.findRoleMappings = findRoleMappings;
+        this.approximateCountTable = approximateCountTable;
+        this.windowCount = windowCount;
+        this.attributeSearch = attributeSearch;
+        this.batchArrayType = batchArrayType;
+        this.streamResults = streamResults;
+        this.streamFetchSize = streamFetchSize;
+        this.warmUpQuery = warmUpQuery;
+        this.warmUpDays = warmUpDays;
+        this.changeFeedQuery = changeFeedQuery;
+        this.changeFeedInterval = changeFeedInterval;
+        this.parameterTypes = new HashMap<>();
+        Map<String, String> queries = queriesByName();
+        parseParameterTypes(parameterTypeDeclarations).forEach((name, types) -> {
+            String query = queries.get(name);
+            if (query != null) {
+                this.parameterTypes.put(query, types);
+            }
+        });
+    }
+
+    /*
+     * The declared parameter types of a configured query, empty if none are declared.
+     */
+    public List<ParameterType> getParameterTypes(String query) {
+        List<ParameterType> types = query == null ? null : parameterTypes.get(query);
+        return types == null ? List.of() : types;
+    }
+
+    /*
+     * Parses declarations of the form "findById=BIGINT" or "findPasswordHash=VARCHAR,VARCHAR", keyed by query name.
+     */
+    public static Map<String, List<ParameterType>> parseParameterTypes(List<String> declarations) {
+        Map<String, List<ParameterType>> result = new LinkedHashMap<>();
+        if (declarations == null) {
+            return result;
+        }
+        for (String declaration : declarations) {
+            if (declaration == null || declaration.isBlank()) {
+                continue;
+            }
+            int separator = declaration.indexOf('=');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Parameter type declaration '" + declaration + "' is not of the form query=TYPE[,TYPE...]");
+            }
+            String name = declaration.substring(0, separator).trim();
+            if (!QUERY_NAMES.contains(name)) {
+                throw new IllegalArgumentException("Unknown query '" + name + "' in parameter type declaration, expected one of " + QUERY_NAMES);
+            }
+            List<ParameterType> types = new ArrayList<>();
+            for (String type : declaration.substring(separator + 1).split(",")) {
+                try {
+                    types.add(ParameterType.valueOf(type.trim().toUpperCase(Locale.ROOT)));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Unknown parameter type '" + type.trim() + "' in '" + declaration + "'");
+                }
+            }
+            result.put(name, List.copyOf(types));
+        }
+        return result;
+    }
+
+    private Map<String, String> queriesByName() {
+        Map<String, String> queries = new HashMap<>();
+        queries.put("count", count);
+        queries.put("listAll", listAll);
+        queries.put("findById", findById);
+        queries.put("findByUsername", findByUsername);
+        queries.put("findByUsernameOrEmail", findByUsernameOrEmail);
+        queries.put("findBySearchTerm", findBySearchTerm);
+        queries.put("findPasswordHash", findPasswordHash);
+        queries.put("findPasswordHashUsernameOnly", findPasswordHashUsernameOnly);
+        queries.put("findRoleMappings", findRoleMappings);
+        queries.put("updateEmailAddress", updateEmailAddress);
+        queries.put("updateCredentials", updateCredentials);
+        queries.put("warmUpQuery", warmUpQuery);
+        queries.put("changeFeedQuery", changeFeedQuery);
+        queries.values().removeIf(query -> query == null || query.isBlank());
+        return queries;
     }
 
     public boolean getAllowKeycloakDelete() {
@@ -64,4 +185,28 @@ public class QueryConfigurations {
     public String updateCredentials() {
         return updateCredentials;
     }
+
+    public boolean hasRoleMappings() {
+        return findRoleMappings != null && !findRoleMappings.isBlank();
+    }
+
+    public boolean hasWarmUpQuery() {
+        return warmUpQuery != null && !warmUpQuery.isBlank();
+    }
+
+    public boolean hasChangeFeedQuery() {
+        return changeFeedQuery != null && !changeFeedQuery.isBlank() && changeFeedInterval > 0;
+    }
+
+    public boolean hasBatchArrayType() {
+        return batchArrayType != null && !batchArrayType.isBlank();
+    }
+
+    public boolean isWindowCount() {
+        return windowCount && RDBMS.isWindowFunctionsSupported();
+    }
+
+    public boolean isApproximateCount() {
+        return approximateCountTable != null && !approximateCountTable.isBlank();
+    }
 }
@@ -0,0 +1,41 @@
+package com.hstahlmann.dbuserprovider.model;
+
+import lombok.Getter;
+
+import java.util.Objects;
+
+/*
+ * A role granted to a user by the external database. A missing client id denotes a realm role.
+ */
+@Getter
+public class RoleMapping {
+
+    private final String clientId;
+    private final String roleName;
+
+    public RoleMapping(String clientId, String roleName) {
+        this.clientId = clientId;
+        this.roleName = roleName;
+    }
+
+    public boolean isRealmRole() {
+        return clientId == null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof RoleMapping)) {
+            return false;
+        }
+        RoleMapping that = (RoleMapping) o;
+        return Objects.equals(clientId, that.clientId) && Objects.equals(roleName, that.roleName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(clientId, roleName);
+    }
+}
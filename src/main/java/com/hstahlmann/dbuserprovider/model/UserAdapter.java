@@ -1,10 +1,13 @@
 package com.hstahlmann.dbuserprovider.model;
 
+import lombok.Getter;
 import lombok.extern.jbosslog.JBossLog;
 import org.apache.commons.lang3.StringUtils;
 import org.keycloak.component.ComponentModel;
+import org.keycloak.models.ClientModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
+import org.keycloak.models.RoleModel;
 import org.keycloak.storage.StorageId;
 import org.keycloak.storage.adapter.AbstractUserAdapterFederatedStorage;
 
@@ -14,18 +17,34 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @JBossLog
 public class UserAdapter extends AbstractUserAdapterFederatedStorage {
 
+    // read-only attribute, "true" while the user is served from a stale copy
+    public static final String STALE_ATTRIBUTE = "sql-provider-stale";
+
     private final String keycloakId;
     private       String username;
+    private final Supplier<Set<RoleMapping>> roleMappings;
+    // the data is the last known copy, the database could not be reached when the user was loaded
+    @Getter
+    private final boolean stale;
 
     public UserAdapter(KeycloakSession session, RealmModel realm, ComponentModel model, Map<String, String> data, boolean allowDatabaseToOverwriteKeycloak) {
+        this(session, realm, model, data, allowDatabaseToOverwriteKeycloak, Set::of, false);
+    }
+
+    public UserAdapter(KeycloakSession session, RealmModel realm, ComponentModel model, Map<String, String> data, boolean allowDatabaseToOverwriteKeycloak,
+                       Supplier<Set<RoleMapping>> roleMappings, boolean stale) {
         super(session, realm, model);
         this.keycloakId = StorageId.keycloakId(model, data.get("id"));
         this.username = data.get("username");
+        this.roleMappings = roleMappings;
+        this.stale = stale;
         try {
           Map<String, List<String>> attributes = this.getAttributes();
           for (Entry<String, String> e : data.entrySet()) {
@@ -50,6 +69,48 @@ public class UserAdapter extends AbstractUserAdapterFederatedStorage {
         return keycloakId;
     }
 
+    /*
+     * The stale marker is computed, it is neither stored nor taken from the database row.
+     */
+    @Override
+    public Map<String, List<String>> getAttributes() {
+        Map<String, List<String>> attributes = super.getAttributes();
+        if (stale) {
+            attributes.put(STALE_ATTRIBUTE, List.of("true"));
+        }
+        return attributes;
+    }
+
+    @Override
+    public String getFirstAttribute(String name) {
+        if (STALE_ATTRIBUTE.equals(name)) {
+            return stale ? "true" : null;
+        }
+        return super.getFirstAttribute(name);
+    }
+
+    @Override
+    public Stream<String> getAttributeStream(String name) {
+        if (STALE_ATTRIBUTE.equals(name)) {
+            return stale ? Stream.of("true") : Stream.empty();
+        }
+        return super.getAttributeStream(name);
+    }
+
+    @Override
+    public void setAttribute(String name, List<String> values) {
+        if (!STALE_ATTRIBUTE.equals(name)) {
+            super.setAttribute(name, values);
+        }
+    }
+
+    @Override
+    public void setSingleAttribute(String name, String value) {
+        if (!STALE_ATTRIBUTE.equals(name)) {
+            super.setSingleAttribute(name, value);
+        }
+    }
+
     @Override
     public String getUsername() {
         return username;
@@ -60,4 +121,30 @@ public class UserAdapter extends AbstractUserAdapterFederatedStorage {
         this.username = username;
     }
 
+    /*
+     * Roles granted by the database are resolved against the realm on every call; the mappings themselves
+     * come from the repository's per-user cache, so this stays an in-memory lookup on token generation.
+     */
+    @Override
+    protected Set<RoleModel> getRoleMappingsInternal() {
+        Set<RoleModel> roles = new HashSet<>();
+        for (RoleMapping mapping : roleMappings.get()) {
+            RoleModel role = resolveRole(mapping);
+            if (role != null) {
+                roles.add(role);
+            } else {
+                log.debugv("Role {0} (client {1}) mapped to user {2} does not exist in realm {3}", mapping.getRoleName(), mapping.getClientId(), username, realm.getName());
+            }
+        }
+        return roles;
+    }
+
+    private RoleModel resolveRole(RoleMapping mapping) {
+        if (mapping.isRealmRole()) {
+            return realm.getRole(mapping.getRoleName());
+        }
+        ClientModel client = realm.getClientByClientId(mapping.getClientId());
+        return client == null ? null : client.getRole(mapping.getRoleName());
+    }
+
 }
@@ -0,0 +1,103 @@
+package com.hstahlmann.dbuserprovider.persistence;
+
+import lombok.extern.jbosslog.JBossLog;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Limits the number of concurrent database operations per operation class, so e.g. admin searches or a sync can
+ * not take all pool connections away from logins. Callers wait at most the class's queue timeout for a permit and
+ * are rejected afterwards. An optional overall limit caps the connections of the component across all classes,
+ * e.g. for components sharing a pool.
+ */
+@JBossLog
+public class Bulkhead {
+
+    private final Map<OperationClass, Compartment> compartments = new EnumMap<>(OperationClass.class);
+    private final Semaphore                        total;
+    private final int                              totalLimit;
+
+    /*
+     * A limit of 0 leaves the class (or the component in total) unlimited.
+     */
+    public Bulkhead(Map<OperationClass, Integer> limits, Map<OperationClass, Long> queueTimeoutsMillis, int totalLimit) {
+        for (OperationClass operationClass : OperationClass.values()) {
+            compartments.put(operationClass, new Compartment(limits.getOrDefault(operationClass, 0), queueTimeoutsMillis.getOrDefault(operationClass, 0L)));
+        }
+        this.totalLimit = totalLimit;
+        this.total = totalLimit > 0 ? new Semaphore(totalLimit, true) : null;
+    }
+
+    /*
+     * Returns a permit to be closed when the operation is finished, or null if the operation is rejected.
+     */
+    public Permit acquire(OperationClass operationClass) {
+        Compartment compartment = compartments.get(operationClass);
+        if (compartment.semaphore == null && total == null) {
+            return Permit.UNLIMITED;
+        }
+        long deadline = System.currentTimeMillis() + compartment.queueTimeoutMillis;
+        try {
+            if (compartment.semaphore == null || compartment.semaphore.tryAcquire(compartment.queueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                if (total == null || total.tryAcquire(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                    return new Permit(compartment.semaphore, total);
+                }
+                if (compartment.semaphore != null) {
+                    compartment.semaphore.release();
+                }
+                compartment.rejections.increment();
+                log.warnv("Rejected {0} operation, limit of {1} concurrent operations of the component reached ({2} rejected so far)", operationClass, totalLimit, compartment.rejections.sum());
+                return null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compartment.rejections.increment();
+        log.warnv("Rejected {0} operation, limit of {1} concurrent operations reached ({2} rejected so far)", operationClass, compartment.limit, compartment.rejections.sum());
+        return null;
+    }
+
+    public static class Permit implements AutoCloseable {
+        private static final Permit UNLIMITED = new Permit(null, null);
+
+        private final Semaphore semaphore;
+        private final Semaphore total;
+        private       boolean   released;
+
+        private Permit(Semaphore semaphore, Semaphore total) {
+            this.semaphore = semaphore;
+            this.total = total;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (semaphore != null) {
+                semaphore.release();
+            }
+            if (total != null) {
+                total.release();
+            }
+        }
+    }
+
+    private static class Compartment {
+        private final int       limit;
+        private final Semaphore semaphore;
+        private final long      queueTimeoutMillis;
+        private final LongAdder rejections = new LongAdder();
+
+        private Compartment(int limit, long queueTimeoutMillis) {
+            this.limit = limit;
+            this.semaphore = limit > 0 ? new Semaphore(limit, true) : null;
+            this.queueTimeoutMillis = queueTimeoutMillis;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.hstahlmann.dbuserprovider.persistence;
+
+import lombok.extern.jbosslog.JBossLog;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/*
+ * Polls the configured change feed query ("changes after sequence N") and refreshes the users it reports. The
+ * highest sequence seen is kept in memory; on start the poller begins at the current head of the feed, older
+ * changes are covered by the next sync.
+ *
+ * Sequence numbers are assigned when a change is written, not when it commits, so a change can become visible after
+ * changes with higher numbers. Numbers skipped below the highest one seen are therefore kept as gaps and read again
+ * until they show up or GAP_TIMEOUT_MILLIS has passed (the number was rolled back or never used). Jumps of more than
+ * MAX_GAPS numbers, e.g. from sequence caches, are not tracked.
+ *
+ * High-water mark and gaps only move on once the users of a batch have been refreshed; a batch whose refresh fails
+ * is read again on the next run.
+ */
+@JBossLog
+class ChangeFeedPoller implements Closeable {
+
+    static final int  BATCH_SIZE         = 1000;
+    static final int  MAX_GAPS           = 1000;
+    static final long GAP_TIMEOUT_MILLIS = 60000;
+
+    /*
+     * Where the poller reads the feed from and refreshes the changed users; implemented by the repository.
+     */
+    interface Source {
+        Long readChangeFeedHead();
+
+        List<Map<String, String>> readChanges(long after);
+
+        List<Map<String, String>> refreshUsers(Collection<String> ids);
+    }
+
+    private final Source                                   source;
+    private final Consumer<Collection<Map<String, String>>> onChange;
+    private final LongSupplier                             clock;
+    // skipped sequence number -> time it was found missing
+    private final NavigableMap<Long, Long>                 gaps = new TreeMap<>();
+    private volatile ScheduledExecutorService              scheduler;
+    private       Long                                     highWaterMark;
+
+    ChangeFeedPoller(Source source, Consumer<Collection<Map<String, String>>> onChange, LongSupplier clock) {
+        this.source = source;
+        this.onChange = onChange;
+        this.clock = clock;
+    }
+
+    void start(long intervalMillis) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "sql-user-provider-change-feed");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::poll, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void poll() {
+        try {
+            if (highWaterMark == null) {
+                highWaterMark = source.readChangeFeedHead();
+                log.infov("Change feed starts after sequence {0}", highWaterMark);
+                return;
+            }
+            long now = clock.getAsLong();
+            gaps.values().removeIf(foundAt -> now - foundAt > GAP_TIMEOUT_MILLIS);
+            long after = gaps.isEmpty() ? highWaterMark : Math.min(highWaterMark, gaps.firstKey() - 1);
+            List<Map<String, String>> changes;
+            do {
+                changes = source.readChanges(after);
+                if (changes.isEmpty()) {
+                    return;
+                }
+                long                     mark = highWaterMark;
+                NavigableMap<Long, Long> open = new TreeMap<>(gaps);
+                Set<String>              ids  = new LinkedHashSet<>();
+                for (Map<String, String> change : changes) {
+                    long seq = Long.parseLong(change.get("seq").trim());
+                    after = Math.max(after, seq);
+                    if (seq > mark) {
+                        addGaps(open, mark, seq, now);
+                        mark = seq;
+                        ids.add(change.get("id"));
+                    } else if (open.remove(seq) != null) {
+                        ids.add(change.get("id"));
+                    }
+                }
+                ids.remove(null);
+                if (!ids.isEmpty()) {
+                    log.debugv("Change feed reported {0} changed users up to sequence {1}", ids.size(), mark);
+                    onChange.accept(source.refreshUsers(ids));
+                }
+                highWaterMark = mark;
+                gaps.clear();
+                gaps.putAll(open);
+            } while (changes.size() >= BATCH_SIZE);
+        } catch (RuntimeException e) {
+            // the feed is retried from the same sequence on the next run
+            log.warnv("Polling the change feed failed: {0}", Objects.toString(e.getMessage(), e.toString()));
+        }
+    }
+
+    private static void addGaps(NavigableMap<Long, Long> gaps, long from, long to, long now) {
+        if (from == Long.MIN_VALUE || to - from - 1 > MAX_GAPS) {
+            return;
+        }
+        for (long seq = from + 1; seq < to; seq++) {
+            gaps.put(seq, now);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+}
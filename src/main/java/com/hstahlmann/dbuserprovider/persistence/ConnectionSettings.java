@@ -0,0 +1,84 @@
+package com.hstahlmann.dbuserprovider.persistence;
+
+import lombok.Getter;
+import lombok.extern.jbosslog.JBossLog;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+/*
+ * Connection and statement settings of the read queries of an operation class. Hikari restores read-only flag
+ * and isolation level of a connection when it is returned to the pool, so they only apply to the borrowing query.
+ * Setting and restoring them costs a round trip each with most drivers, which is why both are off by default.
+ */
+@JBossLog
+@Getter
+public class ConnectionSettings {
+
+    public static final int TRANSACTION_DEFAULT  = -1;
+    // isolation level constant of the Microsoft SQL Server driver (SQLServerConnection.TRANSACTION_SNAPSHOT)
+    public static final int TRANSACTION_SNAPSHOT = 4096;
+
+    private final boolean readOnly;
+    private final int     isolation;
+    private final int     queryTimeoutSeconds;
+    private final int     fetchSize;
+
+    public ConnectionSettings(boolean readOnly, int isolation, int queryTimeoutSeconds, int fetchSize) {
+        this.readOnly = readOnly;
+        this.isolation = isolation;
+        this.queryTimeoutSeconds = queryTimeoutSeconds;
+        this.fetchSize = fetchSize;
+    }
+
+    /*
+     * Settings the driver does not support are skipped, so the query still runs with the driver's defaults.
+     */
+    void applyTo(Connection c) {
+        try {
+            if (readOnly) {
+                c.setReadOnly(true);
+            }
+        } catch (SQLException e) {
+            log.debugv("Read-only flag not applied: {0}", e.getMessage());
+        }
+        try {
+            if (isolation != TRANSACTION_DEFAULT) {
+                c.setTransactionIsolation(isolation);
+            }
+        } catch (SQLException e) {
+            log.debugv("Isolation level {0} not applied: {1}", isolation, e.getMessage());
+        }
+    }
+
+    /*
+     * A maxRows of 0 returns all rows; lookups of a single user pass 1, so the database can stop after the first.
+     */
+    void applyTo(Statement statement, int maxRows) throws SQLException {
+        statement.setQueryTimeout(queryTimeoutSeconds);
+        statement.setFetchSize(fetchSize);
+        statement.setMaxRows(maxRows);
+    }
+
+    public static int isolationByName(String name) {
+        if (name == null) {
+            return TRANSACTION_DEFAULT;
+        }
+        switch (name) {
+            case "READ UNCOMMITTED":
+                return Connection.TRANSACTION_READ_UNCOMMITTED;
+            case "READ COMMITTED":
+                return Connection.TRANSACTION_READ_COMMITTED;
+            case "SNAPSHOT (SQL Server)":
+                return TRANSACTION_SNAPSHOT;
+            default:
+                return TRANSACTION_DEFAULT;
+        }
+    }
+
+    public static List<String> getIsolationNames() {
+        return List.of("Driver default", "READ COMMITTED", "READ UNCOMMITTED", "SNAPSHOT (SQL Server)");
+    }
+}
@@ -1,78 +1,460 @@
 package com.hstahlmann.dbuserprovider.persistence;
 
 
+import com.hstahlmann.dbuserprovider.model.DataSourceConfigurations;
+import com.hstahlmann.dbuserprovider.util.CircuitBreaker;
+import com.hstahlmann.dbuserprovider.util.TimedCache;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
 import lombok.extern.jbosslog.JBossLog;
 import org.apache.commons.lang3.StringUtils;
 
 import javax.sql.DataSource;
 import java.io.Closeable;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Optional;
-import java.util.concurrent.ExecutorService;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+/*
+ * The pools of one provider component and their settings are published as one immutable state in a volatile field,
+ * so the query path neither locks nor allocates. The disposal of replaced pools and the pool sizing run on a
+ * scheduler shared by all components; the health probes, which block while a database does not answer, run on
+ * their own, so a hanging database does not delay the others.
+ */
 @JBossLog
 public class DataSourceProvider implements Closeable {
-    
-    private static final SimpleDateFormat SIMPLE_DATE_FORMAT = new SimpleDateFormat("dd-MM-yyyy HH:mm:ss");
-    private final ExecutorService  executor           = Executors.newFixedThreadPool(1);
-    private              HikariDataSource hikariDataSource;
-    
+
+    private static final DateTimeFormatter DATE_FORMAT       = DateTimeFormatter.ofPattern("dd-MM-yyyy HH:mm:ss");
+    private static final int              FAILURE_THRESHOLD  = 3;
+    private static final long             POLL_MILLIS        = 50;
+    // how long an open breaker fails fast before letting a trial call through, if there is no health probe
+    private static final long             RETRY_MILLIS       = 10000;
+    private static final ScheduledExecutorService SCHEDULER  = Executors.newScheduledThreadPool(2, r -> {
+        Thread thread = new Thread(r, "sql-user-provider-pools");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ScheduledExecutorService PROBES     = Executors.newScheduledThreadPool(2, r -> {
+        Thread thread = new Thread(r, "sql-user-provider-probes");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile State              state = State.EMPTY;
+    private volatile Target             active;
+    // users whose reads go to the primary for a while after they were updated; kept across configuration changes
+    private final    TimedCache<String, Boolean> pinnedToPrimary = new TimedCache<>(Long.MAX_VALUE, 10000);
+    private          ScheduledFuture<?> probing;
+
     public DataSourceProvider() {
     }
-    
-    
-    synchronized Optional<DataSource> getDataSource() {
-        return Optional.ofNullable(hikariDataSource);
+
+
+    /*
+     * The first database in the configured order whose circuit breaker is closed, used for writes. Null while
+     * all of them are unavailable, so callers fail fast.
+     */
+    DataSource getDataSource() {
+        for (Target target : state.targets) {
+            if (!target.breaker.isOpen()) {
+                if (target != active) {
+                    log.warnv("Switching to database {0}", target.url);
+                    active = target;
+                }
+                return target.dataSource;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * The read replica if one is configured and available, otherwise the primary. Reads for users updated within
+     * the read-your-writes window go to the primary, so they see their own change despite replication lag.
+     */
+    DataSource getReadDataSource(String userKey) {
+        State  current = state;
+        Target replica = current.replica;
+        if (replica == null || replica.breaker.isOpen() || (userKey != null && pinnedToPrimary.get(userKey) != null)) {
+            return getDataSource();
+        }
+        return replica.dataSource;
+    }
+
+    DataSource getReadDataSource() {
+        return getReadDataSource(null);
+    }
+
+    /*
+     * Pins the reads of a user (by id or login name) to the primary after a write.
+     */
+    void pinToPrimary(String userKey) {
+        long window = state.readYourWritesWindowMillis;
+        if (userKey != null && window > 0) {
+            pinnedToPrimary.put(userKey, Boolean.TRUE, window);
+        }
+    }
+
+    /*
+     * Query timeout every statement should use, so a hanging database does not tie up login threads.
+     */
+    int getQueryTimeoutSeconds() {
+        return state.queryTimeoutSeconds;
+    }
+
+    /*
+     * Connection and statement settings for the read queries of the operation class.
+     */
+    ConnectionSettings getConnectionSettings(OperationClass operationClass) {
+        return state.connectionSettings.get(operationClass);
+    }
+
+    /*
+     * Permit for a database operation of the given class, null if the class's concurrency limit is reached.
+     */
+    Bulkhead.Permit acquire(OperationClass operationClass) {
+        return state.bulkhead.acquire(operationClass);
+    }
+
+    /*
+     * Prepares the statement, or takes it from the statement cache of the connection if one is configured.
+     */
+    StatementCache.Lease prepareStatement(Connection c, String sql) throws SQLException {
+        return state.statementCache.prepare(c, sql);
+    }
+
+    /*
+     * Called with the outcome of every database call; connection failures count towards opening the circuit
+     * breaker of the database, other errors (e.g. SQL syntax) do not.
+     */
+    void reportSuccess(DataSource dataSource) {
+        Target target = findTarget(dataSource);
+        if (target != null) {
+            target.breaker.recordSuccess();
+        }
+    }
+
+    void reportFailure(DataSource dataSource, SQLException e) {
+        if (!isConnectionFailure(e)) {
+            return;
+        }
+        Target target = findTarget(dataSource);
+        if (target != null && target.breaker.recordFailure()) {
+            log.warnv("Database {0} is unavailable, failing over: {1}", target.url, e.getMessage());
+        }
+    }
+
+    private Target findTarget(DataSource dataSource) {
+        State current = state;
+        if (current.replica != null && current.replica.dataSource == dataSource) {
+            return current.replica;
+        }
+        for (Target target : current.targets) {
+            if (target.dataSource == dataSource) {
+                return target;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isConnectionFailure(SQLException e) {
+        return e instanceof SQLTransientConnectionException || e instanceof SQLNonTransientConnectionException || e instanceof SQLTimeoutException
+               || (e.getSQLState() != null && e.getSQLState().startsWith("08"));
+    }
+
+
+    public synchronized void configure(DataSourceConfigurations configurations) {
+        List<Target> newTargets  = new ArrayList<>();
+        Target       newReplica  = null;
+        long         retryMillis = configurations.getHealthCheckIntervalMillis() > 0 ? configurations.getHealthCheckIntervalMillis() : RETRY_MILLIS;
+        try {
+            // the primary is checked when the component is saved; at startup any of the databases may be down
+            newTargets.add(openTarget(configurations, configurations.getUrl(), configurations.getName(), retryMillis));
+            for (int i = 0; i < configurations.getFailoverUrls().size(); i++) {
+                String url = configurations.getFailoverUrls().get(i);
+                newTargets.add(openTarget(configurations, url, configurations.getName() + "-FAILOVER-" + (i + 1), retryMillis));
+            }
+            if (configurations.hasReplicaUrl()) {
+                newReplica = openTarget(configurations, configurations.getReplicaUrl(), configurations.getName() + "-REPLICA", retryMillis);
+            }
+        } catch (RuntimeException e) {
+            newTargets.forEach(target -> releaseTarget(target, 0));
+            throw e;
+        }
+        // the new pools take over with open connections, so the first requests after a change do not wait for them
+        prefill(newTargets.get(0), configurations);
+        if (newReplica != null) {
+            prefill(newReplica, configurations);
+        }
+        State old = state;
+        state = new State(newTargets, newReplica, configurations);
+        active = newTargets.get(0);
+        if (probing != null) {
+            probing.cancel(false);
+        }
+        long interval = configurations.getHealthCheckIntervalMillis();
+        if (interval > 0) {
+            probing = PROBES.scheduleWithFixedDelay(() -> probe(interval), interval, interval, TimeUnit.MILLISECONDS);
+        }
+        old.statementCache.close();
+        old.allTargets().forEach(target -> releaseTarget(target, configurations.getDrainTimeoutMillis()));
+    }
+
+    /*
+     * Waits until the pool has opened its minimum idle connections, at most for the connection timeout. A database
+     * the pool could not open any connection to starts with its circuit breaker open, so the first requests go to
+     * the failover database instead of waiting for the connection timeout.
+     */
+    private static void prefill(Target target, DataSourceConfigurations configurations) {
+        HikariDataSource dataSource = target.dataSource;
+        HikariPoolMXBean pool       = dataSource.getHikariPoolMXBean();
+        long             deadline   = System.currentTimeMillis() + configurations.getConnectionTimeoutMillis();
+        int              minIdle    = Math.min(configurations.getMinimumIdle(), configurations.getMaximumPoolSize());
+        try {
+            while (pool != null && pool.getTotalConnections() < minIdle && System.currentTimeMillis() < deadline) {
+                Thread.sleep(POLL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (pool != null && pool.getTotalConnections() < minIdle) {
+            log.warnv("Pool {0} opened only {1} of {2} connections before taking over", dataSource.getPoolName(), pool.getTotalConnections(), minIdle);
+            if (pool.getTotalConnections() == 0 && target.breaker.trip()) {
+                log.warnv("Database {0} is unavailable", target.url);
+            }
+        }
+    }
+
+    /*
+     * Opens a single connection to the primary database and runs the RDBMS test statement, without creating a pool.
+     * Used to validate a configuration before it is applied.
+     */
+    public static void testConnection(DataSourceConfigurations configurations) throws SQLException {
+        Driver driver;
+        try {
+            driver = (Driver) Class.forName(configurations.getRdbms().getDriver()).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new SQLException("JDBC driver " + configurations.getRdbms().getDriver() + " not available", e);
+        }
+        Properties properties = new Properties();
+        properties.putAll(configurations.getDriverProperties());
+        if (configurations.getUser() != null) {
+            properties.setProperty("user", configurations.getUser());
+        }
+        if (configurations.getPassword() != null) {
+            properties.setProperty("password", configurations.getPassword());
+        }
+        try (Connection c = driver.connect(configurations.getUrl(), properties)) {
+            if (c == null) {
+                throw new SQLException("JDBC URL not accepted by driver " + configurations.getRdbms().getDriver());
+            }
+            try (Statement statement = c.createStatement()) {
+                statement.setQueryTimeout(configurations.getQueryTimeoutSeconds());
+                statement.execute(configurations.getRdbms().getTestString());
+            }
+        }
+    }
+
+    /*
+     * A pool shared with the other components using the same database, or an own pool if sharing is disabled.
+     */
+    private static Target openTarget(DataSourceConfigurations configurations, String url, String name, long retryMillis) {
+        int maximumPoolSize = configurations.getMaximumPoolSize();
+        if (!configurations.isSharedPool()) {
+            return new Target(url, createDataSource(configurations, url, name), new PoolHealth(FAILURE_THRESHOLD, retryMillis), configurations.getName(), maximumPoolSize);
+        }
+        SharedPools.Entry shared = SharedPools.acquire(url, configurations,
+                                                       () -> createDataSource(configurations, url, "SHARED-" + name),
+                                                       () -> new PoolHealth(FAILURE_THRESHOLD, retryMillis));
+        return new Target(url, shared.getDataSource(), shared.getHealth(), configurations.getName(), maximumPoolSize);
     }
-    
-    
-    public void configure(String url, RDBMS rdbms, String user, String pass, String name) {
+
+    private static void releaseTarget(Target target, long drainTimeoutMillis) {
+        if (SharedPools.release(target.dataSource, target.component, target.maximumPoolSize)) {
+            disposeOldDataSource(target.dataSource, drainTimeoutMillis);
+        }
+    }
+
+    private static HikariDataSource createDataSource(DataSourceConfigurations configurations, String url, String name) {
         HikariConfig hikariConfig = new HikariConfig();
-        hikariConfig.setUsername(user);
-        hikariConfig.setPassword(pass);
-        hikariConfig.setPoolName(StringUtils.capitalize("SQL-USER-PROVIDER-" + name + SIMPLE_DATE_FORMAT.format(new Date())));
+        hikariConfig.setUsername(configurations.getUser());
+        hikariConfig.setPassword(configurations.getPassword());
+        hikariConfig.setPoolName(StringUtils.capitalize("SQL-USER-PROVIDER-" + name + DATE_FORMAT.format(LocalDateTime.now())));
         hikariConfig.setJdbcUrl(url);
-        hikariConfig.setConnectionTestQuery(rdbms.getTestString());
-        hikariConfig.setDriverClassName(rdbms.getDriver());
+        hikariConfig.setConnectionTestQuery(configurations.getRdbms().getTestString());
+        hikariConfig.setDriverClassName(configurations.getRdbms().getDriver());
+        hikariConfig.setConnectionTimeout(configurations.getConnectionTimeoutMillis());
+        hikariConfig.setValidationTimeout(Math.min(5000, configurations.getConnectionTimeoutMillis()));
+        hikariConfig.setMaximumPoolSize(configurations.getMaximumPoolSize());
+        hikariConfig.setMinimumIdle(Math.min(configurations.getMinimumIdle(), configurations.getMaximumPoolSize()));
+        // connections are opened in the background, an unavailable database is handled by its circuit breaker
+        hikariConfig.setInitializationFailTimeout(-1);
+        PoolSizeController controller = null;
+        if (configurations.getPoolSizingIntervalMillis() > 0) {
+            controller = new PoolSizeController(configurations.getMinimumIdle(), configurations.getMaximumPoolSize(), (int) configurations.getPoolSizingIntervalMillis());
+            hikariConfig.setMetricsTrackerFactory(controller);
+        }
+        configurations.getDriverProperties().forEach(hikariConfig::addDataSourceProperty);
 
-//        hikariConfig.setConnectionTimeout(30000);
 //        hikariConfig.setIdleTimeout(600000);
 //        hikariConfig.setMaxLifetime(1800000);
-//        hikariConfig.setMinimumIdle(10);
-//        hikariConfig.setMaximumPoolSize(30);
-        // MySQL only
-//        hikariConfig.addDataSourceProperty("cachePrepStmts", "true");
-//        hikariConfig.addDataSourceProperty("prepStmtCacheSize", "250");
-//        hikariConfig.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
 
         HikariDataSource newDS = new HikariDataSource(hikariConfig);
         newDS.validate();
-        HikariDataSource old = this.hikariDataSource;
-        this.hikariDataSource = newDS;
-        disposeOldDataSource(old);
-    }
-    
-    private void disposeOldDataSource(HikariDataSource old) {
-        executor.submit(() -> {
-            try {
-                if (old != null) {
-                    old.close();
+        if (controller != null) {
+            controller.start(newDS.getHikariConfigMXBean(), SCHEDULER);
+        }
+        return newDS;
+    }
+
+    /*
+     * Runs the RDBMS test statement against every database. A failed probe opens the database's circuit breaker,
+     * a successful one closes it again, which fails back to a recovered primary. Pools shared with other components
+     * are skipped if one of those probed them within the interval.
+     */
+    private void probe(long intervalMillis) {
+        State current = state;
+        for (Target target : current.allTargets()) {
+            if (!target.health.claimProbe(intervalMillis)) {
+                continue;
+            }
+            try (Connection c = target.dataSource.getConnection(); Statement statement = c.createStatement()) {
+                statement.setQueryTimeout(current.queryTimeoutSeconds);
+                statement.execute(current.testString);
+                if (target.breaker.recordSuccess()) {
+                    log.infov("Database {0} is available again", target.url);
+                }
+            } catch (SQLException | RuntimeException e) {
+                if (target.breaker.trip()) {
+                    log.warnv("Health probe of database {0} failed: {1}", target.url, e.getMessage());
                 }
-            } catch (Exception e) {
-                log.error(e.getMessage(), e);
             }
-        });
+        }
     }
-    
+
+    /*
+     * Closes a replaced pool once the queries still running on it have finished, but at most after the drain
+     * timeout. Idle connections are closed right away; the pool is checked again periodically instead of blocking
+     * a thread while it drains.
+     */
+    private static void disposeOldDataSource(HikariDataSource old, long drainTimeoutMillis) {
+        HikariPoolMXBean pool = old.getHikariPoolMXBean();
+        if (pool != null) {
+            pool.softEvictConnections();
+        }
+        drain(old, System.currentTimeMillis() + drainTimeoutMillis);
+    }
+
+    private static void drain(HikariDataSource old, long deadline) {
+        try {
+            HikariPoolMXBean pool = old.getHikariPoolMXBean();
+            if (pool != null && pool.getActiveConnections() > 0) {
+                if (System.currentTimeMillis() < deadline) {
+                    SCHEDULER.schedule(() -> drain(old, deadline), POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                log.warnv("Closing pool {0} with {1} connections still in use", old.getPoolName(), pool.getActiveConnections());
+            }
+            old.close();
+        } catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    /*
+     * Closes all pools of the component, e.g. when it is removed. The shared schedulers keep running for the others.
+     */
     @Override
-    public void close() {
-        executor.shutdownNow();
-        if (hikariDataSource != null) {
-            hikariDataSource.close();
+    public synchronized void close() {
+        if (probing != null) {
+            probing.cancel(false);
+        }
+        State old = state;
+        state = State.EMPTY;
+        pinnedToPrimary.clear();
+        old.statementCache.close();
+        old.allTargets().forEach(target -> {
+            if (SharedPools.release(target.dataSource, target.component, target.maximumPoolSize)) {
+                target.dataSource.close();
+            }
+        });
+    }
+
+    private static class State {
+        private static final State EMPTY = new State(List.of(), null, null);
+
+        // primary first, then the failover databases in the configured order
+        private final List<Target>                targets;
+        private final Target                      replica;
+        private final String                      testString;
+        private final int                         queryTimeoutSeconds;
+        private final Bulkhead                    bulkhead;
+        private final long                        readYourWritesWindowMillis;
+        private final StatementCache              statementCache;
+        private final Map<OperationClass, ConnectionSettings> connectionSettings;
+
+        private State(List<Target> targets, Target replica, DataSourceConfigurations configurations) {
+            this.targets = List.copyOf(targets);
+            this.replica = replica;
+            if (configurations == null) {
+                this.testString = null;
+                this.queryTimeoutSeconds = 0;
+                this.bulkhead = new Bulkhead(Map.of(), Map.of(), 0);
+                this.readYourWritesWindowMillis = 0;
+                this.statementCache = new StatementCache(0);
+                this.connectionSettings = new EnumMap<>(OperationClass.class);
+                for (OperationClass operationClass : OperationClass.values()) {
+                    this.connectionSettings.put(operationClass, new ConnectionSettings(false, ConnectionSettings.TRANSACTION_DEFAULT, 0, 0));
+                }
+            } else {
+                this.testString = configurations.getRdbms().getTestString();
+                this.queryTimeoutSeconds = configurations.getQueryTimeoutSeconds();
+                this.bulkhead = new Bulkhead(configurations.getConcurrencyLimits(), configurations.getQueueTimeoutsMillis(), configurations.getMaxConnections());
+                this.readYourWritesWindowMillis = configurations.getReadYourWritesWindowMillis();
+                this.statementCache = new StatementCache(configurations.getStatementCacheSize());
+                this.connectionSettings = new EnumMap<>(configurations.getConnectionSettings());
+            }
+        }
+
+        private List<Target> allTargets() {
+            List<Target> all = new ArrayList<>(targets);
+            if (replica != null) {
+                all.add(replica);
+            }
+            return all;
+        }
+    }
+
+    private static class Target {
+        private final String           url;
+        private final HikariDataSource dataSource;
+        private final PoolHealth       health;
+        private final CircuitBreaker   breaker;
+        // the component name and maximum pool size this component acquired a shared pool with
+        private final String           component;
+        private final int              maximumPoolSize;
+
+        private Target(String url, HikariDataSource dataSource, PoolHealth health, String component, int maximumPoolSize) {
+            this.url = url;
+            this.dataSource = dataSource;
+            this.health = health;
+            this.breaker = health.getBreaker();
+            this.component = component;
+            this.maximumPoolSize = maximumPoolSize;
         }
     }
 }
@@ -0,0 +1,357 @@
+package com.hstahlmann.dbuserprovider.persistence;
+
+import lombok.extern.jbosslog.JBossLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Maps normalised usernames and emails to external user ids, stored outside the Java heap in a memory-mapped file.
+ *
+ * The file is an open-addressed hash table with linear probing followed by a data area holding the ids:
+ *
+ *   header: magic (int), slot count (int), data area offset (long)
+ *   slots:  64-bit key hash (long), offset of the id in the data area (unsigned int)
+ *   data:   id length (unsigned short), id bytes (UTF-8)
+ *
+ * The file is mapped in segments of 1 GB (see Segments), as a few tens of millions of users need more than a
+ * single mapping can hold; the data area is limited to 4 GB by the slot's offset.
+ *
+ * Only hashes of the keys are stored, so a hit is a candidate that must be verified by the primary-key lookup.
+ * The file is written once per sync (see Build) into a temporary file and atomically moved into place, readers
+ * keep the previous mapping until then. After a restart the last file is mapped again without touching the database.
+ */
+@JBossLog
+public class OffHeapLoginIndex implements Closeable {
+
+    private static final int  MAGIC       = 0x4C474958;
+    private static final int  HEADER_SIZE = 16;
+    private static final int  SLOT_SIZE   = 12;
+    private static final long EMPTY       = 0L;
+    private static final double LOAD_FACTOR = 0.7;
+    private static final long SEGMENT_SIZE = 1L << 30;
+    private static final long MAX_DATA_SIZE = 0xFFFFFFFFL;
+    private static final int  MAX_ID_SIZE   = 0xFFFF;
+
+    private final Path                      file;
+    private final long                      segmentSize;
+    private final AtomicReference<Segments> mapping = new AtomicReference<>();
+
+    public OffHeapLoginIndex(Path file) {
+        this(file, SEGMENT_SIZE);
+    }
+
+    OffHeapLoginIndex(Path file, long segmentSize) {
+        this.file = file;
+        this.segmentSize = segmentSize;
+        if (Files.isRegularFile(file)) {
+            try {
+                mapping.set(map(file));
+                log.infov("Login index {0} loaded with {1} slots", file, slotCount(mapping.get()));
+            } catch (IOException | IllegalStateException e) {
+                log.warnv("Login index {0} could not be loaded, it is rebuilt on the next sync: {1}", file, e.getMessage());
+            }
+        }
+    }
+
+    public boolean isReady() {
+        return mapping.get() != null;
+    }
+
+    /*
+     * Returns the external id stored for the username or email, or null if the key is not in the index.
+     */
+    public String find(String login) {
+        Segments buffer = mapping.get();
+        if (buffer == null || login == null) {
+            return null;
+        }
+        long hash       = hash(login);
+        int  slotCount  = slotCount(buffer);
+        long dataOffset = buffer.getLong(8);
+        for (int probe = 0, slot = slot(hash, slotCount); probe < slotCount; probe++, slot = (slot + 1) & (slotCount - 1)) {
+            long position = HEADER_SIZE + (long) slot * SLOT_SIZE;
+            long stored   = buffer.getLong(position);
+            if (stored == EMPTY) {
+                return null;
+            }
+            if (stored == hash) {
+                return readId(buffer, dataOffset + Integer.toUnsignedLong(buffer.getInt(position + 8)));
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Starts writing a new index file; it is mapped in place of the current one when the build is finished.
+     */
+    public Build startRebuild() throws IOException {
+        return new Build();
+    }
+
+    /*
+     * Writes the index in two passes, so the entries of a sync are not collected on the heap: the users are
+     * appended to a staging file while the sync reads them (id, username hash, email hash), then the staging file
+     * is read twice to fill the hash table, whose size is only known at the end. A username takes precedence over
+     * the same email of another user; of two users with the same email, the first one is kept.
+     *
+     * Every build writes its own temporary files next to the index, so builds that overlap (e.g. a sync during the
+     * startup build) do not write into each other's files; the last one finished replaces the index.
+     */
+    public class Build {
+        private final Path             staging;
+        private final DataOutputStream out;
+        private       long             keys;
+        private       long             dataSize;
+
+        private Build() throws IOException {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            staging = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName() + ".", ".staging");
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(staging)));
+        }
+
+        public void add(String id, String username, String email) throws IOException {
+            String usernameKey  = normalize(username);
+            String emailKey     = normalize(email);
+            long   usernameHash = usernameKey == null || usernameKey.isEmpty() ? EMPTY : hash(usernameKey);
+            long   emailHash    = emailKey == null || emailKey.isEmpty() ? EMPTY : hash(emailKey);
+            if (id == null || (usernameHash == EMPTY && emailHash == EMPTY)) {
+                return;
+            }
+            byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > MAX_ID_SIZE) {
+                log.warnv("User id of {0} bytes exceeds {1} bytes and is left out of login index {2}", bytes.length, MAX_ID_SIZE, file);
+                return;
+            }
+            out.writeShort(bytes.length);
+            out.write(bytes);
+            out.writeLong(usernameHash);
+            out.writeLong(emailHash);
+            keys += (usernameHash == EMPTY ? 0 : 1) + (emailHash == EMPTY ? 0 : 1);
+            dataSize += 2 + bytes.length;
+        }
+
+        public void finish() throws IOException {
+            out.close();
+            Path tmp = null;
+            try {
+                int  slotCount  = Integer.highestOneBit((int) Math.min(1 << 29, keys / LOAD_FACTOR + 1)) << 1;
+                long dataOffset = HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+                if (dataSize > MAX_DATA_SIZE) {
+                    throw new IOException("Login index for " + keys + " entries exceeds " + MAX_DATA_SIZE + " bytes of ids");
+                }
+                tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName() + ".", ".tmp");
+                try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    Segments buffer = new Segments(channel, FileChannel.MapMode.READ_WRITE, dataOffset + dataSize, segmentSize);
+                    buffer.putInt(0, MAGIC);
+                    buffer.putInt(4, slotCount);
+                    buffer.putLong(8, dataOffset);
+                    // emails first and only if not taken, then usernames replacing whatever is there
+                    fill(buffer, slotCount, dataOffset, false);
+                    fill(buffer, slotCount, dataOffset, true);
+                    buffer.force();
+                }
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                mapping.set(map(file));
+                log.infov("Login index {0} written with {1} entries in {2} slots", file, keys, slotCount);
+            } finally {
+                Files.deleteIfExists(staging);
+                if (tmp != null) {
+                    Files.deleteIfExists(tmp);
+                }
+            }
+        }
+
+        /*
+         * Drops the build, e.g. when the sync stopped before reading all users; the current index stays in place.
+         */
+        public void abort() {
+            try {
+                out.close();
+                Files.deleteIfExists(staging);
+            } catch (IOException e) {
+                log.warnv("Could not remove staging file {0}: {1}", staging, e.getMessage());
+            }
+        }
+
+        private void fill(Segments buffer, int slotCount, long dataOffset, boolean usernames) throws IOException {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(staging)))) {
+                long idOffset = 0;
+                for (long read = 0; read < dataSize; ) {
+                    byte[] id = new byte[in.readUnsignedShort()];
+                    in.readFully(id);
+                    long usernameHash = in.readLong();
+                    long emailHash    = in.readLong();
+                    if (!usernames) {
+                        buffer.put(dataOffset + idOffset, ByteBuffer.allocate(2).putShort((short) id.length).array());
+                        buffer.put(dataOffset + idOffset + 2, id);
+                        if (emailHash != EMPTY) {
+                            put(buffer, slotCount, emailHash, idOffset, false);
+                        }
+                    } else if (usernameHash != EMPTY) {
+                        put(buffer, slotCount, usernameHash, idOffset, true);
+                    }
+                    idOffset += 2 + id.length;
+                    read += 2 + id.length;
+                }
+            }
+        }
+
+        private void put(Segments buffer, int slotCount, long hash, long idOffset, boolean replace) {
+            int  slot     = slot(hash, slotCount);
+            long position = HEADER_SIZE + (long) slot * SLOT_SIZE;
+            while (buffer.getLong(position) != EMPTY && buffer.getLong(position) != hash) {
+                slot = (slot + 1) & (slotCount - 1);
+                position = HEADER_SIZE + (long) slot * SLOT_SIZE;
+            }
+            if (!replace && buffer.getLong(position) == hash) {
+                return;
+            }
+            buffer.putLong(position, hash);
+            buffer.putInt(position + 8, (int) idOffset);
+        }
+    }
+
+    @Override
+    public void close() {
+        mapping.set(null);
+    }
+
+    public static String normalize(String login) {
+        return login == null ? null : login.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private Segments map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IllegalStateException("not a login index file");
+            }
+            Segments buffer = new Segments(channel, FileChannel.MapMode.READ_ONLY, channel.size(), segmentSize);
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IllegalStateException("not a login index file");
+            }
+            return buffer;
+        }
+    }
+
+    private static int slotCount(Segments buffer) {
+        return buffer.getInt(4);
+    }
+
+    private static int slot(long hash, int slotCount) {
+        return (int) ((hash ^ (hash >>> 32)) & (slotCount - 1));
+    }
+
+    private static String readId(Segments buffer, long position) {
+        byte[] id = buffer.get(position + 2, ByteBuffer.wrap(buffer.get(position, 2)).getShort() & 0xFFFF);
+        return new String(id, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * The file mapped in consecutive segments. Values that cross the end of a segment are copied byte-wise from
+     * both segments, everything else is read from and written to a single segment directly.
+     */
+    private static class Segments {
+        private final MappedByteBuffer[] segments;
+        private final long               segmentSize;
+
+        private Segments(FileChannel channel, FileChannel.MapMode mode, long size, long segmentSize) throws IOException {
+            this.segmentSize = segmentSize;
+            this.segments = new MappedByteBuffer[(int) ((size + segmentSize - 1) / segmentSize)];
+            for (int i = 0; i < segments.length; i++) {
+                long position = i * segmentSize;
+                segments[i] = channel.map(mode, position, Math.min(segmentSize, size - position));
+            }
+        }
+
+        private MappedByteBuffer segment(long position) {
+            return segments[(int) (position / segmentSize)];
+        }
+
+        private int offset(long position) {
+            return (int) (position % segmentSize);
+        }
+
+        private boolean fits(long position, int length) {
+            return offset(position) + length <= segment(position).capacity();
+        }
+
+        private long getLong(long position) {
+            return fits(position, 8) ? segment(position).getLong(offset(position)) : ByteBuffer.wrap(get(position, 8)).getLong();
+        }
+
+        private int getInt(long position) {
+            return fits(position, 4) ? segment(position).getInt(offset(position)) : ByteBuffer.wrap(get(position, 4)).getInt();
+        }
+
+        private void putLong(long position, long value) {
+            if (fits(position, 8)) {
+                segment(position).putLong(offset(position), value);
+            } else {
+                put(position, ByteBuffer.allocate(8).putLong(value).array());
+            }
+        }
+
+        private void putInt(long position, int value) {
+            if (fits(position, 4)) {
+                segment(position).putInt(offset(position), value);
+            } else {
+                put(position, ByteBuffer.allocate(4).putInt(value).array());
+            }
+        }
+
+        private byte[] get(long position, int length) {
+            byte[] result = new byte[length];
+            for (int copied = 0; copied < length; ) {
+                MappedByteBuffer segment = segment(position + copied);
+                int              start   = offset(position + copied);
+                int              count   = Math.min(length - copied, segment.capacity() - start);
+                segment.get(start, result, copied, count);
+                copied += count;
+            }
+            return result;
+        }
+
+        private void put(long position, byte[] bytes) {
+            for (int copied = 0; copied < bytes.length; ) {
+                MappedByteBuffer segment = segment(position + copied);
+                int              start   = offset(position + copied);
+                int              count   = Math.min(bytes.length - copied, segment.capacity() - start);
+                segment.put(start, bytes, copied, count);
+                copied += count;
+            }
+        }
+
+        private void force() {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+        }
+    }
+
+    /*
+     * 64-bit FNV-1a over the normalised key; 0 marks an empty slot and is never returned.
+     */
+    static long hash(String login) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : normalize(login).getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash == EMPTY ? 1 : hash;
+    }
+}
@@ -0,0 +1,16 @@
+package com.hstahlmann.dbuserprovider.persistence;
+
+/*
+ * Kinds of database operations, each with its own share of the connection pool (see Bulkhead).
+ */
+public enum OperationClass {
+
+    // user lookups by id, login name or batches of ids, role mappings
+    LOOKUP,
+    // password hash queries and credential/email updates
+    CREDENTIAL,
+    // admin console searches, listings and counts
+    SEARCH,
+    // full user listings for the sync, warm-up and change feed
+    SYNC
+}
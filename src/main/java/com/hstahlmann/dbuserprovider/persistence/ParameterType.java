@@ -0,0 +1,65 @@
+package com.hstahlmann.dbuserprovider.persistence;
+
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Types;
+
+/*
+ * SQL type a query parameter is bound as. Keycloak passes ids and login names as strings; binding them with the
+ * type of the column they are compared with avoids an implicit conversion on the database side, which turns an
+ * index seek into a scan (numeric id columns, or VARCHAR columns on SQL Server compared with NVARCHAR parameters).
+ */
+public enum ParameterType {
+
+    INTEGER(Types.INTEGER),
+    BIGINT(Types.BIGINT),
+    NUMERIC(Types.NUMERIC),
+    VARCHAR(Types.VARCHAR),
+    CHAR(Types.CHAR),
+    NVARCHAR(Types.NVARCHAR);
+
+    private final int sqlType;
+
+    ParameterType(int sqlType) {
+        this.sqlType = sqlType;
+    }
+
+    void bind(PreparedStatement statement, int index, Object value) throws SQLException {
+        if (value == null) {
+            statement.setNull(index, sqlType);
+            return;
+        }
+        String text = value.toString().trim();
+        switch (this) {
+            case INTEGER:
+            case BIGINT:
+            case NUMERIC:
+                try {
+                    BigDecimal number = new BigDecimal(text);
+                    if (this == INTEGER) {
+                        statement.setInt(index, number.intValueExact());
+                    } else if (this == BIGINT) {
+                        statement.setLong(index, number.longValueExact());
+                    } else {
+                        statement.setBigDecimal(index, number);
+                    }
+                } catch (NumberFormatException | ArithmeticException e) {
+                    // a value that is not a number of the type can not match the column
+                    statement.setNull(index, sqlType);
+                }
+                return;
+            case NVARCHAR:
+                try {
+                    statement.setNString(index, value.toString());
+                } catch (SQLFeatureNotSupportedException | AbstractMethodError e) {
+                    // JDBC 3 drivers (jTDS) bind strings as NVARCHAR unless sendStringParametersAsUnicode=false
+                    statement.setString(index, value.toString());
+                }
+                return;
+            default:
+                statement.setObject(index, value.toString(), sqlType);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package com.hstahlmann.dbuserprovider.persistence;
+
+import com.hstahlmann.dbuserprovider.util.CircuitBreaker;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Circuit breaker of a pool and the time it was last probed. Components sharing a pool share its health, so they
+ * fail over together and the database is probed once per interval instead of once per component.
+ */
+class PoolHealth {
+
+    private final CircuitBreaker breaker;
+    private final AtomicLong     probedAt = new AtomicLong();
+
+    PoolHealth(int failureThreshold, long retryMillis) {
+        this.breaker = new CircuitBreaker(failureThreshold, retryMillis);
+    }
+
+    CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    /*
+     * Returns whether the caller is to probe the pool now, false if another component did within the last half
+     * interval (the components' probes are not in step, so the full interval would skip some rounds).
+     */
+    boolean claimProbe(long intervalMillis) {
+        long last = probedAt.get();
+        long now  = System.currentTimeMillis();
+        return now - last >= intervalMillis / 2 && probedAt.compareAndSet(last, now);
+    }
+}
@@ -0,0 +1,124 @@
+package com.hstahlmann.dbuserprovider.persistence;
+
+import com.zaxxer.hikari.HikariConfigMXBean;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+import lombok.extern.jbosslog.JBossLog;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Resizes a connection pool at runtime from what it measures. Hikari reports every connection checkout (time spent
+ * waiting for the connection and time it was held) through the metrics tracker; once per interval the controller
+ * derives the number of connections in use from Little's law, L = arrival rate * mean hold time, and sets the
+ * maximum pool size to that plus headroom, within the configured bounds.
+ *
+ * The pool grows right away when threads are waiting for connections, and shrinks by at most a quarter per
+ * interval when the load goes down. Hikari retires the surplus connections once they have been idle for its idle
+ * timeout.
+ */
+@JBossLog
+class PoolSizeController implements MetricsTrackerFactory, IMetricsTracker {
+
+    private static final double HEADROOM                = 1.5;
+    // mean wait for a connection above which the pool counts as too small even without waiting threads
+    private static final double ACQUIRE_PRESSURE_MILLIS = 5;
+
+    private final    int                intervalMillis;
+    private final    int                minimum;
+    private volatile int                maximum;
+    private final    LongAdder          checkouts      = new LongAdder();
+    private final    LongAdder          usageMillis    = new LongAdder();
+    private final    LongAdder          acquireNanos   = new LongAdder();
+    private final    LongAdder          timeouts       = new LongAdder();
+    private volatile String             poolName;
+    private volatile PoolStats          poolStats;
+    private          ScheduledFuture<?> sampling;
+
+    PoolSizeController(int minimum, int maximum, int intervalMillis) {
+        this.minimum = Math.max(1, minimum);
+        this.maximum = Math.max(this.minimum, maximum);
+        this.intervalMillis = intervalMillis;
+    }
+
+    /*
+     * Starts sampling once the pool exists; stops when the pool is closed.
+     */
+    synchronized void start(HikariConfigMXBean pool, ScheduledExecutorService scheduler) {
+        sampling = scheduler.scheduleWithFixedDelay(() -> resize(pool), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Changes the upper bound, e.g. when a component with another maximum pool size starts or stops sharing the
+     * pool. A lower bound takes effect at the next resize.
+     */
+    void setMaximum(int maximum) {
+        this.maximum = Math.max(minimum, maximum);
+    }
+
+    @Override
+    public IMetricsTracker create(String poolName, PoolStats poolStats) {
+        this.poolName = poolName;
+        this.poolStats = poolStats;
+        return this;
+    }
+
+    @Override
+    public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+        acquireNanos.add(elapsedAcquiredNanos);
+    }
+
+    @Override
+    public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+        checkouts.increment();
+        usageMillis.add(elapsedBorrowedMillis);
+    }
+
+    @Override
+    public void recordConnectionTimeout() {
+        timeouts.increment();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (sampling != null) {
+            sampling.cancel(false);
+        }
+    }
+
+    private void resize(HikariConfigMXBean pool) {
+        PoolStats stats = poolStats;
+        if (stats == null) {
+            return;
+        }
+        long   count         = checkouts.sumThenReset();
+        long   usage         = usageMillis.sumThenReset();
+        long   acquire       = acquireNanos.sumThenReset();
+        long   timedOut      = timeouts.sumThenReset();
+        int    pending       = stats.getPendingThreads();
+        double arrivalRate   = count * 1000.0 / intervalMillis;
+        double meanHoldMs    = count == 0 ? 0 : (double) usage / count;
+        double meanAcquireMs = count == 0 ? 0 : acquire / 1_000_000.0 / count;
+        int    inUse         = (int) Math.ceil(arrivalRate * meanHoldMs / 1000.0 * HEADROOM);
+
+        int current = pool.getMaximumPoolSize();
+        int target;
+        if (pending > 0 || timedOut > 0 || meanAcquireMs > ACQUIRE_PRESSURE_MILLIS) {
+            target = Math.max(inUse, current + Math.max(pending, 1));
+        } else if (inUse < current) {
+            target = Math.max(inUse, current - Math.max(1, current / 4));
+        } else {
+            target = inUse;
+        }
+        target = Math.max(minimum, Math.min(maximum, Math.max(target, stats.getActiveConnections())));
+        if (target != current) {
+            pool.setMaximumPoolSize(target);
+            log.debugv("Pool {0} resized from {1} to {2} connections ({3} checkouts/s, {4} ms held, {5} ms waited, {6} threads waiting)",
+                       poolName, current, target, Math.round(arrivalRate), Math.round(meanHoldMs), Math.round(meanAcquireMs), pending);
+        }
+    }
+}
@@ -5,28 +5,98 @@ import lombok.Getter;
 import org.hibernate.dialect.*;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 @Getter
 public enum RDBMS {
 
-    POSTGRESQL("PostgreSQL 10+", org.postgresql.Driver.class.getName(), "SELECT 1", new PostgreSQLDialect()),
-    MYSQL("MySQL 5.7+", com.mysql.cj.jdbc.Driver.class.getName(), "SELECT 1", new MySQLDialect()),
-    ORACLE("Oracle 12+", oracle.jdbc.OracleDriver.class.getName(), "SELECT 1 FROM DUAL", new OracleDialect()),
-    SQL_SERVER("MS SQL Server 2012+ (jtds)", net.sourceforge.jtds.jdbc.Driver.class.getName(), "SELECT 1", new SQLServerDialect()),
-    MSSQL("MS SQL Server 2012+ (jdbc)", com.microsoft.sqlserver.jdbc.SQLServerDriver.class.getName(), "SELECT 1", new SQLServerDialect());
+    // server-side prepare from the first execution, with a larger per-connection cache of prepared statements
+    POSTGRESQL("PostgreSQL 10+", org.postgresql.Driver.class.getName(), "SELECT 1", new PostgreSQLDialect(), true, 1000, true,
+               "SELECT reltuples::bigint FROM pg_class WHERE oid = to_regclass(?)",
+               "prepareThreshold=1", "preparedStatementCacheQueries=512", "defaultRowFetchSize=1000"),
+    // server-side prepared statements cached by the driver; session state is tracked locally instead of queried
+    MYSQL("MySQL 5.7+", com.mysql.cj.jdbc.Driver.class.getName(), "SELECT 1", new MySQLDialect(), false, 1000, false,
+          "SELECT table_rows FROM information_schema.tables WHERE table_schema = database() AND table_name = ?",
+          "useServerPrepStmts=true", "cachePrepStmts=true", "prepStmtCacheSize=250", "prepStmtCacheSqlLimit=2048",
+          "useLocalSessionState=true", "cacheResultSetMetadata=true", "elideSetAutoCommits=true", "maintainTimeStats=false"),
+    // implicit statement cache of the driver and a larger row prefetch than the default of 10
+    ORACLE("Oracle 12+", oracle.jdbc.OracleDriver.class.getName(), "SELECT 1 FROM DUAL", new OracleDialect(), true, 1000, false,
+           "SELECT num_rows FROM user_tables WHERE table_name = upper(?)",
+           "oracle.jdbc.implicitStatementCacheSize=100", "defaultRowPrefetch=100"),
+    // strings are sent as VARCHAR, as NVARCHAR parameters turn index seeks on VARCHAR columns into scans
+    SQL_SERVER("MS SQL Server 2012+ (jtds)", net.sourceforge.jtds.jdbc.Driver.class.getName(), "SELECT 1", new SQLServerDialect(), true, 2000, false,
+               "SELECT sum(rows) FROM sys.partitions WHERE object_id = object_id(?) AND index_id IN (0, 1)",
+               "sendStringParametersAsUnicode=false"),
+    MSSQL("MS SQL Server 2012+ (jdbc)", com.microsoft.sqlserver.jdbc.SQLServerDriver.class.getName(), "SELECT 1", new SQLServerDialect(), true, 2000, false,
+          "SELECT sum(rows) FROM sys.partitions WHERE object_id = object_id(?) AND index_id IN (0, 1)",
+          "sendStringParametersAsUnicode=false", "disableStatementPooling=false", "statementPoolingCacheSize=100");
 
     private final String  desc;
     private final String  driver;
     private final String  testString;
     private final Dialect dialect;
+    // window functions (count(*) over()) are not available before MySQL 8
+    private final boolean windowFunctionsSupported;
+    // largest "in" list sent in one batch lookup (Oracle allows 1000 expressions, SQL Server 2100 parameters)
+    private final int     maxInListSize;
+    // the driver can bind a java.sql.Array that is compared with "= any(?)"
+    private final boolean arrayBindingSupported;
+    // reads the row estimate the database keeps in its catalog statistics, the table name is passed as parameter
+    private final String  approximateCountQuery;
+    // driver properties tuned for the database, read-only as they are shared by all components; overridden per component
+    private final Map<String, String> driverProperties;
 
-    RDBMS(String desc, String driver, String testString, Dialect dialect) {
+    RDBMS(String desc, String driver, String testString, Dialect dialect, boolean windowFunctionsSupported, int maxInListSize, boolean arrayBindingSupported,
+          String approximateCountQuery, String... driverProperties) {
         this.desc = desc;
         this.driver = driver;
         this.testString = testString;
         this.dialect = dialect;
+        this.windowFunctionsSupported = windowFunctionsSupported;
+        this.maxInListSize = maxInListSize;
+        this.arrayBindingSupported = arrayBindingSupported;
+        this.approximateCountQuery = approximateCountQuery;
+        this.driverProperties = Collections.unmodifiableMap(withOverrides(Map.of(), List.of(driverProperties)));
+    }
+
+    /*
+     * The driver properties of the profile with the given "name=value" entries applied; "name=" removes a property.
+     */
+    public Map<String, String> getDriverProperties(List<String> overrides) {
+        return withOverrides(driverProperties, overrides);
+    }
+
+    private static Map<String, String> withOverrides(Map<String, String> properties, List<String> overrides) {
+        Map<String, String> result = new LinkedHashMap<>(properties);
+        if (overrides != null) {
+            for (String override : overrides) {
+                int separator = override.indexOf('=');
+                if (separator <= 0) {
+                    continue;
+                }
+                String name  = override.substring(0, separator).trim();
+                String value = override.substring(separator + 1).trim();
+                if (value.isEmpty()) {
+                    result.remove(name);
+                } else {
+                    result.put(name, value);
+                }
+            }
+        }
+        return result;
+    }
+
+    /*
+     * The driver profiles of all databases, for the help text of the admin console.
+     */
+    public static String describeDriverProfiles() {
+        return Arrays.stream(values())
+                     .map(rdbms -> rdbms.desc + ": " + rdbms.driverProperties.entrySet().stream().map(e -> e.getKey() + "=" + e.getValue()).collect(Collectors.joining(", ")))
+                     .collect(Collectors.joining("; "));
     }
 
     public static RDBMS getByDescription(String desc) {
@@ -0,0 +1,156 @@
+package com.hstahlmann.dbuserprovider.persistence;
+
+import com.hstahlmann.dbuserprovider.model.DataSourceConfigurations;
+import com.zaxxer.hikari.HikariDataSource;
+import lombok.extern.jbosslog.JBossLog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Supplier;
+
+/*
+ * Connection pools shared by the components that connect to the same database (URL, user and RDBMS), e.g. one
+ * component per realm against the same ERP database, so the database does not keep a set of idle connections per
+ * component. Pools are reference counted; the component releasing the last reference drains and closes the pool.
+ *
+ * Components only share a pool if they also ask for the same pool settings (connection timeout, minimum idle
+ * connections, adaptive sizing), so a changed setting takes effect with the component's next pool instead of being
+ * ignored while others use the old one; a warning tells when components of the same database get separate pools
+ * for that reason. The maximum size of a shared pool is the largest maximum pool size requested by the components
+ * using it (with adaptive sizing, that is the controller's upper bound), and goes down again when the component
+ * that requested it releases the pool. The components share the pool's health.
+ */
+@JBossLog
+class SharedPools {
+
+    private static final Map<Key, Entry> POOLS = new HashMap<>();
+
+    private SharedPools() {
+    }
+
+    static synchronized Entry acquire(String url, DataSourceConfigurations configurations, Supplier<HikariDataSource> factory, Supplier<PoolHealth> health) {
+        int   maximumPoolSize = configurations.getMaximumPoolSize();
+        Key   key             = new Key(url, configurations);
+        Entry entry           = POOLS.get(key);
+        if (entry == null || entry.dataSource.isClosed()) {
+            for (Entry other : POOLS.values()) {
+                // a component's own previous pool differs whenever it changes a setting, which is not worth a warning
+                if (other.key.isSameDatabase(key) && other.components.stream().anyMatch(component -> !component.equals(configurations.getName()))) {
+                    log.warnv("Component {0} asks for other settings than pool {1} of the same database and gets a separate pool", configurations.getName(), other.dataSource.getPoolName());
+                }
+            }
+            entry = new Entry(key, factory.get(), health.get());
+            POOLS.put(key, entry);
+        }
+        entry.maximumPoolSizes.add(maximumPoolSize);
+        entry.components.add(configurations.getName());
+        entry.resize();
+        log.debugv("Pool {0} used by {1} components", entry.dataSource.getPoolName(), entry.maximumPoolSizes.size());
+        return entry;
+    }
+
+    /*
+     * Returns true if the caller released the last reference (or the pool was never shared) and has to close it.
+     * Component and maximum pool size are the ones the caller acquired the pool with.
+     */
+    static synchronized boolean release(HikariDataSource dataSource, String component, int maximumPoolSize) {
+        for (Entry entry : POOLS.values()) {
+            if (entry.dataSource == dataSource) {
+                entry.maximumPoolSizes.remove(Integer.valueOf(maximumPoolSize));
+                entry.components.remove(component);
+                if (!entry.maximumPoolSizes.isEmpty()) {
+                    entry.resize();
+                    return false;
+                }
+                POOLS.remove(entry.key);
+                return true;
+            }
+        }
+        return true;
+    }
+
+    static class Entry {
+        private final Key              key;
+        private final HikariDataSource dataSource;
+        private final PoolHealth       health;
+        // one per component using the pool
+        private final List<Integer>    maximumPoolSizes = new ArrayList<>();
+        private final List<String>     components       = new ArrayList<>();
+
+        private Entry(Key key, HikariDataSource dataSource, PoolHealth health) {
+            this.key = key;
+            this.dataSource = dataSource;
+            this.health = health;
+        }
+
+        HikariDataSource getDataSource() {
+            return dataSource;
+        }
+
+        PoolHealth getHealth() {
+            return health;
+        }
+
+        private void resize() {
+            int maximumPoolSize = Collections.max(maximumPoolSizes);
+            if (dataSource.getMetricsTrackerFactory() instanceof PoolSizeController controller) {
+                controller.setMaximum(maximumPoolSize);
+            } else if (dataSource.getHikariConfigMXBean().getMaximumPoolSize() != maximumPoolSize) {
+                dataSource.getHikariConfigMXBean().setMaximumPoolSize(maximumPoolSize);
+            }
+        }
+    }
+
+    /*
+     * Password, driver properties and pool settings are part of the key, so a component whose settings were changed
+     * does not keep using a pool that was opened with the old ones. The maximum pool size is not, see resize.
+     */
+    private static class Key {
+        private final String url;
+        private final String user;
+        private final String password;
+        private final RDBMS  rdbms;
+        private final Map<String, String> driverProperties;
+        private final long   connectionTimeoutMillis;
+        private final int    minimumIdle;
+        private final long   poolSizingIntervalMillis;
+
+        private Key(String url, DataSourceConfigurations configurations) {
+            this.url = url;
+            this.user = configurations.getUser();
+            this.password = configurations.getPassword();
+            this.rdbms = configurations.getRdbms();
+            this.driverProperties = configurations.getDriverProperties();
+            this.connectionTimeoutMillis = configurations.getConnectionTimeoutMillis();
+            this.minimumIdle = configurations.getMinimumIdle();
+            this.poolSizingIntervalMillis = configurations.getPoolSizingIntervalMillis();
+        }
+
+        private boolean isSameDatabase(Key that) {
+            return Objects.equals(url, that.url) && Objects.equals(user, that.user) && rdbms == that.rdbms;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return isSameDatabase(that) && Objects.equals(password, that.password) && Objects.equals(driverProperties, that.driverProperties)
+                   && connectionTimeoutMillis == that.connectionTimeoutMillis && minimumIdle == that.minimumIdle
+                   && poolSizingIntervalMillis == that.poolSizingIntervalMillis;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(url, user, rdbms);
+        }
+    }
+}
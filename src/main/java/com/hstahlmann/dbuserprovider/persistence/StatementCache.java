@@ -0,0 +1,194 @@
+package com.hstahlmann.dbuserprovider.persistence;
+
+import lombok.extern.jbosslog.JBossLog;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Client-side cache of prepared statements per physical connection, keyed by SQL text, for drivers without a
+ * statement cache of their own (e.g. jTDS). Hikari does not cache statements, so without it every query is
+ * prepared (and parsed by the database) again.
+ *
+ * Statements are prepared on the driver connection behind the Hikari proxy, so Hikari does not close them when
+ * the connection goes back to the pool. A statement is taken out of the cache while it is in use and put back
+ * afterwards; the least recently used statement of a connection is closed when the connection holds more than
+ * the configured number.
+ *
+ * Hikari evicts connections that failed with a fatal error without telling the cache. A statement that failed
+ * therefore drops all statements of its connection, and statements of connections the pool has closed are swept
+ * when statements are returned, at most once per second, and when a new connection shows up.
+ */
+@JBossLog
+class StatementCache {
+
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+
+    private final int                                                      size;
+    private final Map<Connection, LinkedHashMap<String, PreparedStatement>> statements = new ConcurrentHashMap<>();
+    private final AtomicLong                                               sweptAt    = new AtomicLong();
+    private volatile boolean                                               closed;
+
+    /*
+     * A size of 0 disables the cache; statements are then prepared and closed for every query.
+     */
+    StatementCache(int size) {
+        this.size = size;
+    }
+
+    Lease prepare(Connection c, String sql) throws SQLException {
+        if (size <= 0 || closed) {
+            return new Lease(null, null, null, c.prepareStatement(sql));
+        }
+        Connection                               connection = c.unwrap(Connection.class);
+        LinkedHashMap<String, PreparedStatement> cached     = statements.get(connection);
+        if (cached == null) {
+            sweep();
+            cached = statements.computeIfAbsent(connection, k -> new LinkedHashMap<>(16, 0.75f, true));
+        }
+        PreparedStatement statement;
+        synchronized (cached) {
+            statement = cached.remove(sql);
+        }
+        if (statement == null || statement.isClosed()) {
+            statement = connection.prepareStatement(sql);
+        }
+        return new Lease(connection, cached, sql, statement);
+    }
+
+    /*
+     * Closes all statements not in use; statements in use are closed when they are released.
+     */
+    void close() {
+        closed = true;
+        statements.values().forEach(cached -> {
+            synchronized (cached) {
+                cached.values().forEach(StatementCache::closeQuietly);
+                cached.clear();
+            }
+        });
+        statements.clear();
+    }
+
+    private void sweep() {
+        List<Connection> gone = new ArrayList<>();
+        for (Connection connection : statements.keySet()) {
+            try {
+                if (connection.isClosed()) {
+                    gone.add(connection);
+                }
+            } catch (SQLException e) {
+                gone.add(connection);
+            }
+        }
+        gone.forEach(this::evict);
+    }
+
+    private void sweepIfDue() {
+        long now  = System.currentTimeMillis();
+        long last = sweptAt.get();
+        if (now - last >= SWEEP_INTERVAL_MILLIS && sweptAt.compareAndSet(last, now)) {
+            sweep();
+        }
+    }
+
+    /*
+     * Closes and forgets all cached statements of a connection that is closed or may be broken.
+     */
+    private void evict(Connection connection) {
+        LinkedHashMap<String, PreparedStatement> cached = statements.remove(connection);
+        if (cached != null) {
+            synchronized (cached) {
+                cached.values().forEach(StatementCache::closeQuietly);
+                cached.clear();
+            }
+        }
+    }
+
+    private void putBack(Connection connection, LinkedHashMap<String, PreparedStatement> cached, String sql, PreparedStatement statement) {
+        PreparedStatement evicted = null;
+        synchronized (cached) {
+            // the connection may have been evicted while the statement was in use
+            if (closed || statements.get(connection) != cached) {
+                evicted = statement;
+            } else {
+                PreparedStatement previous = cached.put(sql, statement);
+                if (previous != null && previous != statement) {
+                    closeQuietly(previous);
+                }
+                if (cached.size() > size) {
+                    Map.Entry<String, PreparedStatement> eldest = cached.entrySet().iterator().next();
+                    evicted = eldest.getValue();
+                    cached.remove(eldest.getKey());
+                }
+            }
+        }
+        if (evicted != null) {
+            closeQuietly(evicted);
+        }
+    }
+
+    private static void closeQuietly(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            log.debugv("Closing cached statement failed: {0}", e.getMessage());
+        }
+    }
+
+    /*
+     * A statement in use. Call keep() once the statement was used successfully; otherwise it is closed on close()
+     * together with the other statements of its connection, since the connection may be broken.
+     */
+    class Lease implements AutoCloseable {
+        private final Connection                               connection;
+        private final LinkedHashMap<String, PreparedStatement> cached;
+        private final String                                   sql;
+        private final PreparedStatement                        statement;
+        private       boolean                                  keep;
+
+        private Lease(Connection connection, LinkedHashMap<String, PreparedStatement> cached, String sql, PreparedStatement statement) {
+            this.connection = connection;
+            this.cached = cached;
+            this.sql = sql;
+            this.statement = statement;
+        }
+
+        PreparedStatement getStatement() {
+            return statement;
+        }
+
+        void keep() {
+            keep = true;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if (cached == null) {
+                statement.close();
+                return;
+            }
+            if (!keep) {
+                closeQuietly(statement);
+                evict(connection);
+                return;
+            }
+            try {
+                statement.clearParameters();
+            } catch (SQLException e) {
+                closeQuietly(statement);
+                evict(connection);
+                return;
+            }
+            putBack(connection, cached, sql, statement);
+            sweepIfDue();
+        }
+    }
+}
@@ -1,84 +1,352 @@
 package com.hstahlmann.dbuserprovider.persistence;
 
 import com.hstahlmann.dbuserprovider.DBUserStorageException;
+import com.hstahlmann.dbuserprovider.cluster.InvalidationBus;
+import com.hstahlmann.dbuserprovider.cluster.UserInvalidationEvent;
+import com.hstahlmann.dbuserprovider.model.CacheConfigurations;
 import com.hstahlmann.dbuserprovider.model.QueryConfigurations;
+import com.hstahlmann.dbuserprovider.model.RoleMapping;
+import com.hstahlmann.dbuserprovider.util.AdaptiveTtl;
+import com.hstahlmann.dbuserprovider.util.AttributeSearchQuery;
 import com.hstahlmann.dbuserprovider.util.AuthCredentials;
 import com.hstahlmann.dbuserprovider.util.PagingUtil;
+import com.hstahlmann.dbuserprovider.util.TimedCache;
+import lombok.Getter;
 import lombok.extern.jbosslog.JBossLog;
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.codec.binary.StringUtils;
 import org.apache.commons.codec.digest.DigestUtils;
 
 import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 @JBossLog
 public class UserRepository {
     
+    private static final int WARM_UP_BATCH_SIZE = 500;
+    // without adaptive TTL, user data loaded this recently is not reloaded while validating credentials
+    private static final long DEFAULT_FRESHNESS_MILLIS = 500;
+    private static final int  REFRESH_THREADS = 4;
+    // background refreshes waiting for a thread; further ones are dropped and their callers get the stale data
+    private static final int  REFRESH_QUEUE_SIZE = 1000;
     
     private final DataSourceProvider  dataSourceProvider;
+    @Getter
     private final QueryConfigurations queryConfigurations;
+    private final TimedCache<String, Set<RoleMapping>> roleMappingCache;
+    private final TimedCache<String, Integer>          countCache;
+    private final UserSearchIndex                      searchIndex;
+    private final OffHeapLoginIndex                    loginIndex;
+    private final TimedCache<String, Map<String, String>> userCache;
+    // normalised username/email -> user id
+    private final TimedCache<String, String>           loginCache;
+    private final AdaptiveTtl                          adaptiveTtl;
+    private final long                                 userCacheTtlMillis;
+    private final long                                 staleBudgetMillis;
+    // running background refreshes of users served stale, by id
+    private final Map<String, CompletableFuture<Optional<Map<String, String>>>> refreshes = new ConcurrentHashMap<>();
+    private final Set<String>                          staleIds = ConcurrentHashMap.newKeySet();
+    private final ExecutorService                      refreshExecutor;
+    private volatile Consumer<Collection<Map<String, String>>> usersChanged = users -> { };
+    private final UserSnapshot                         snapshot;
+    private final int                                  maxCachedUsers;
+    private final String                               componentId;
+    private final InvalidationBus                      invalidationBus;
+    private       ChangeFeedPoller                     changeFeed;
     
-    public UserRepository(DataSourceProvider dataSourceProvider, QueryConfigurations queryConfigurations) {
+    public UserRepository(String componentId, DataSourceProvider dataSourceProvider, QueryConfigurations queryConfigurations,
+                          CacheConfigurations cacheConfigurations, InvalidationBus invalidationBus) {
+        this.componentId         = componentId;
+        this.invalidationBus     = invalidationBus;
         this.dataSourceProvider  = dataSourceProvider;
         this.queryConfigurations = queryConfigurations;
+        this.roleMappingCache    = new TimedCache<>(cacheConfigurations.getRoleMappingCacheTtlMillis(), cacheConfigurations.getMaxCachedUsers());
+        this.countCache          = new TimedCache<>(cacheConfigurations.getCountCacheTtlMillis(), 1000);
+        this.searchIndex         = cacheConfigurations.isSearchIndex() ? new UserSearchIndex() : null;
+        this.loginIndex          = cacheConfigurations.hasLoginIndexFile() ? new OffHeapLoginIndex(Paths.get(cacheConfigurations.getLoginIndexFile())) : null;
+        this.adaptiveTtl         = new AdaptiveTtl(cacheConfigurations.getMinUserTtlMillis(), cacheConfigurations.getMaxUserTtlMillis(), cacheConfigurations.getMaxCachedUsers());
+        this.userCacheTtlMillis  = adaptiveTtl.isEnabled() ? adaptiveTtl.getMaxTtlMillis() : cacheConfigurations.getUserCacheTtlMillis();
+        this.userCache           = new TimedCache<>(userCacheTtlMillis, cacheConfigurations.getMaxCachedUsers(), cacheConfigurations.getStaleTtlMillis());
+        this.loginCache          = new TimedCache<>(userCacheTtlMillis, cacheConfigurations.getMaxCachedUsers() * 2, cacheConfigurations.getStaleTtlMillis());
+        this.staleBudgetMillis   = cacheConfigurations.getStaleBudgetMillis();
+        this.refreshExecutor     = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(REFRESH_QUEUE_SIZE), r -> {
+            Thread thread = new Thread(r, "sql-user-provider-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.maxCachedUsers      = cacheConfigurations.getMaxCachedUsers();
+        this.snapshot            = cacheConfigurations.hasSnapshotFile() ? openSnapshot(cacheConfigurations.getSnapshotFile()) : null;
+        if (snapshot != null && userCache.isEnabled()) {
+            refreshExecutor.execute(this::preWarmFromSnapshot);
+        }
+    }
+
+    /*
+     * Loads the snapshot rows into the user cache, up to the cache size so nothing is evicted on the way, and
+     * serves them without a query until they expire. Changes made while the node was down are not in the
+     * snapshot, so each row gets a random time to live between half and all of the regular one: outdated rows
+     * are reloaded within one time to live, spread out instead of all at once.
+     */
+    void preWarmFromSnapshot() {
+        int[] loaded = {0};
+        snapshot.forEach(user -> {
+            String id = user.get("id");
+            if (id == null || loaded[0] >= maxCachedUsers || userCache.getStale(id) != null) {
+                return;
+            }
+            long ttl = adaptiveTtl.isEnabled() ? adaptiveTtl.ttl(id) : userCacheTtlMillis;
+            ttl = ttl / 2 + ThreadLocalRandom.current().nextLong(ttl / 2 + 1);
+            userCache.put(id, user, ttl);
+            for (String login : new String[]{user.get("username"), user.get("email")}) {
+                if (login != null && !login.isBlank()) {
+                    loginCache.put(OffHeapLoginIndex.normalize(login), id, ttl);
+                }
+            }
+            loaded[0]++;
+        });
+        log.infov("User cache pre-warmed with {0} users from the snapshot", loaded[0]);
+    }
+
+    private static UserSnapshot openSnapshot(String file) {
+        try {
+            return new UserSnapshot(Paths.get(file));
+        } catch (IOException e) {
+            log.error("User snapshot " + file + " could not be opened: " + e.getMessage(), e);
+            return null;
+        }
     }
     
     
-    private <T> T doQuery(String query, PagingUtil.Pageable pageable, Function<ResultSet, T> resultTransformer, Object... params) {
-        Optional<DataSource> dataSourceOpt = dataSourceProvider.getDataSource();
-        if (dataSourceOpt.isPresent()) {
-            DataSource dataSource = dataSourceOpt.get();
-            try (Connection c = dataSource.getConnection()) {
+    private <T> T doQuery(OperationClass operationClass, String query, PagingUtil.Pageable pageable, Function<ResultSet, T> resultTransformer, Object... params) {
+        return doQuery(operationClass, dataSourceProvider.getReadDataSource(), 0, query, pageable, resultTransformer, params);
+    }
+
+    /*
+     * Runs a read query with the connection settings of its operation class. maxRows limits the rows the database
+     * returns, 0 for all.
+     */
+    private <T> T doQuery(OperationClass operationClass, DataSource dataSource, int maxRows, String query, PagingUtil.Pageable pageable,
+                          Function<ResultSet, T> resultTransformer, Object... params) {
+        if (dataSource != null) {
+            Bulkhead.Permit permit = dataSourceProvider.acquire(operationClass);
+            if (permit == null) {
+                return null;
+            }
+            try (permit; Connection c = dataSource.getConnection()) {
+                ConnectionSettings  settings = dataSourceProvider.getConnectionSettings(operationClass);
+                List<ParameterType> types    = queryConfigurations.getParameterTypes(query);
+                settings.applyTo(c);
                 if (pageable != null) {
                     query = PagingUtil.formatScriptWithPageable(query, pageable, queryConfigurations.getRDBMS());
                 }
                 log.debugv("Query: {0} params: {1} ", query, Arrays.toString(params));
-                try (PreparedStatement statement = c.prepareStatement(query)) {
-                    if (params != null) {
-                        for (int i = 1; i <= params.length; i++) {
-                            statement.setObject(i, params[i - 1]);
-                        }
-                    }
+                try (StatementCache.Lease lease = dataSourceProvider.prepareStatement(c, query)) {
+                    PreparedStatement statement = lease.getStatement();
+                    settings.applyTo(statement, maxRows);
+                    bindParameters(c, statement, types, params);
                     try (ResultSet rs = statement.executeQuery()) {
-                        return resultTransformer.apply(rs);
+                        T result = resultTransformer.apply(rs);
+                        dataSourceProvider.reportSuccess(dataSource);
+                        lease.keep();
+                        return result;
                     }
                 }
             } catch (SQLException e) {
                 log.error(e.getMessage(), e);
+                dataSourceProvider.reportFailure(dataSource, e);
             }
             return null;
         }
         return null;
     }
 
+    /*
+     * Like doQuery with readMap, but the rows are read from the open result set while the stream is consumed, so
+     * memory use does not depend on the number of rows. Connection, statement and result set are released when the
+     * stream is closed or fully consumed; consumers that stop early must close the stream.
+     */
+    private Stream<Map<String, String>> doQueryStream(OperationClass operationClass, String query, PagingUtil.Pageable pageable, Object... params) {
+        DataSource dataSource = dataSourceProvider.getReadDataSource();
+        if (dataSource == null) {
+            return Stream.empty();
+        }
+        // the permit is held until the stream is closed or fully consumed
+        final Bulkhead.Permit permit = dataSourceProvider.acquire(operationClass);
+        if (permit == null) {
+            return Stream.empty();
+        }
+        Connection        c         = null;
+        PreparedStatement statement = null;
+        ResultSet         rs        = null;
+        try {
+            c = dataSource.getConnection();
+            ConnectionSettings settings = dataSourceProvider.getConnectionSettings(operationClass);
+            settings.applyTo(c);
+            List<ParameterType> types = queryConfigurations.getParameterTypes(query);
+            if (pageable != null) {
+                query = PagingUtil.formatScriptWithPageable(query, pageable, queryConfigurations.getRDBMS());
+            }
+            log.debugv("Streaming query: {0} params: {1} ", query, Arrays.toString(params));
+            if (queryConfigurations.getRDBMS() == RDBMS.POSTGRESQL) {
+                // the PostgreSQL driver only fetches in chunks inside a transaction
+                c.setAutoCommit(false);
+            }
+            statement = c.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setQueryTimeout(settings.getQueryTimeoutSeconds());
+            // MySQL streams row by row only with this marker value
+            statement.setFetchSize(queryConfigurations.getRDBMS() == RDBMS.MYSQL ? Integer.MIN_VALUE : queryConfigurations.getStreamFetchSize());
+            bindParameters(c, statement, types, params);
+            rs = statement.executeQuery();
+        } catch (SQLException e) {
+            log.error(e.getMessage(), e);
+            dataSourceProvider.reportFailure(dataSource, e);
+            closeQuietly(rs, statement, c, permit);
+            return Stream.empty();
+        }
+
+        final Connection        connection = c;
+        final PreparedStatement stmt       = statement;
+        final ResultSet         resultSet  = rs;
+        try {
+            final List<String> columns = readColumns(resultSet);
+            Spliterator<Map<String, String>> rows = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+                private boolean done;
+
+                @Override
+                public boolean tryAdvance(Consumer<? super Map<String, String>> action) {
+                    if (done) {
+                        return false;
+                    }
+                    try {
+                        if (resultSet.next()) {
+                            action.accept(readRow(resultSet, columns));
+                            return true;
+                        }
+                    } catch (SQLException e) {
+                        done = true;
+                        closeQuietly(resultSet, stmt, connection, permit);
+                        throw new DBUserStorageException(e.getMessage(), e);
+                    }
+                    done = true;
+                    closeQuietly(resultSet, stmt, connection, permit);
+                    return false;
+                }
+            };
+            return StreamSupport.stream(rows, false).onClose(() -> closeQuietly(resultSet, stmt, connection, permit));
+        } catch (SQLException e) {
+            log.error(e.getMessage(), e);
+            closeQuietly(resultSet, stmt, connection, permit);
+            return Stream.empty();
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable... resources) {
+        for (AutoCloseable resource : resources) {
+            if (resource == null) {
+                continue;
+            }
+            try {
+                resource.close();
+            } catch (Exception e) {
+                log.debugv("Failed to close {0}: {1}", resource, e.getMessage());
+            }
+        }
+    }
+
+    /*
+     * Declared parameter types are looked up by the text of the configured query. Queries wrapping a configured
+     * one (counts, window count, change feed head) carry its types with the parameters instead.
+     */
+    private Object[] typed(String configuredQuery, Object... params) {
+        List<ParameterType> types = queryConfigurations.getParameterTypes(configuredQuery);
+        if (types.isEmpty() || params == null) {
+            return params;
+        }
+        Object[] typed = params.clone();
+        for (int i = 0; i < typed.length && i < types.size(); i++) {
+            if (!(typed[i] instanceof ArrayParameter) && !(typed[i] instanceof TypedParameter)) {
+                typed[i] = new TypedParameter(types.get(i), typed[i]);
+            }
+        }
+        return typed;
+    }
+
+    /*
+     * Binds the parameters with their declared types (by position); parameters without a declared type are bound
+     * as they are.
+     */
+    private void bindParameters(Connection c, PreparedStatement statement, List<ParameterType> types, Object... params) throws SQLException {
+        if (params != null) {
+            for (int i = 1; i <= params.length; i++) {
+                if (params[i - 1] instanceof ArrayParameter) {
+                    ArrayParameter array = (ArrayParameter) params[i - 1];
+                    statement.setArray(i, c.createArrayOf(array.type, array.values));
+                } else if (params[i - 1] instanceof TypedParameter) {
+                    TypedParameter typed = (TypedParameter) params[i - 1];
+                    typed.type.bind(statement, i, typed.value);
+                } else if (i <= types.size()) {
+                    types.get(i - 1).bind(statement, i, params[i - 1]);
+                } else {
+                    statement.setObject(i, params[i - 1]);
+                }
+            }
+        }
+    }
+
     private List<Map<String, String>> readMap(ResultSet rs) {
         try {
             List<Map<String, String>> data         = new ArrayList<>();
-            Set<String>               columnsFound = new HashSet<>();
-            for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
-                String columnLabel = rs.getMetaData().getColumnLabel(i);
-                columnsFound.add(columnLabel);
-            }
+            List<String>              columnsFound = readColumns(rs);
             while (rs.next()) {
-                Map<String, String> result = new HashMap<>();
-                for (String col : columnsFound) {
-                    result.put(col, rs.getString(col));
-                }
-                data.add(result);
+                data.add(readRow(rs, columnsFound));
             }
             return data;
         } catch (Exception e) {
             throw new DBUserStorageException(e.getMessage(), e);
         }
     }
+
+    private static List<String> readColumns(ResultSet rs) throws SQLException {
+        Set<String> columnsFound = new LinkedHashSet<>();
+        for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+            columnsFound.add(rs.getMetaData().getColumnLabel(i));
+        }
+        return new ArrayList<>(columnsFound);
+    }
+
+    private static Map<String, String> readRow(ResultSet rs, List<String> columns) throws SQLException {
+        Map<String, String> result = new HashMap<>();
+        for (String col : columns) {
+            result.put(col, rs.getString(col));
+        }
+        return result;
+    }
     
     
     private Integer readInt(ResultSet rs) {
@@ -106,43 +374,834 @@ public class UserRepository {
     }
     
     public List<Map<String, String>> getAllUsers() {
-        return doQuery(queryConfigurations.getListAll(), null, this::readMap);
+        List<Map<String, String>> users = doQuery(OperationClass.SYNC, queryConfigurations.getListAll(), null, this::readMap);
+        if (users != null) {
+            SyncIndexes indexes = new SyncIndexes();
+            users.forEach(indexes::add);
+            indexes.finish();
+        }
+        return users;
+    }
+
+    /*
+     * All users for the sync. With streaming enabled the rows are read while the sync walks through them and the
+     * indexes are rebuilt on the way; they are only swapped in when the listing was read completely. A stream
+     * closed before that (sync aborted, query failed) drops the partial index files.
+     */
+    public Stream<Map<String, String>> getAllUsersStream() {
+        if (!queryConfigurations.isStreamResults()) {
+            return Optional.ofNullable(getAllUsers()).orElse(Collections.emptyList()).stream();
+        }
+        Stream<Map<String, String>> users = doQueryStream(OperationClass.SYNC, queryConfigurations.getListAll(), null);
+        if (searchIndex == null && loginIndex == null && snapshot == null) {
+            return users;
+        }
+        SyncIndexes indexes = new SyncIndexes();
+        return whenExhausted(users.peek(indexes::add), indexes::finish, indexes::abort);
+    }
+
+    /*
+     * Collects the indexes built from a complete user listing; they replace the current ones once the listing
+     * has been read.
+     */
+    private class SyncIndexes {
+        private final UserSearchIndex.Rebuild search = searchIndex == null ? null : searchIndex.startRebuild();
+        private       OffHeapLoginIndex.Build logins = startLoginIndexRebuild();
+        private       UserSnapshot.Rewrite    rows   = startSnapshotRewrite();
+
+        private void add(Map<String, String> user) {
+            if (search != null) {
+                search.add(user);
+            }
+            if (rows != null) {
+                try {
+                    rows.add(user);
+                } catch (IOException e) {
+                    // the sync goes on, the current snapshot stays in place
+                    log.error("User snapshot could not be written: " + e.getMessage(), e);
+                    rows.abort();
+                    rows = null;
+                }
+            }
+            if (logins != null) {
+                try {
+                    logins.add(user.get("id"), user.get("username"), user.get("email"));
+                } catch (IOException e) {
+                    // the sync goes on, the current login index stays in place
+                    log.error("Login index could not be written: " + e.getMessage(), e);
+                    logins.abort();
+                    logins = null;
+                }
+            }
+        }
+
+        private void finish() {
+            if (search != null) {
+                search.finish();
+            }
+            if (rows != null) {
+                try {
+                    rows.finish();
+                } catch (IOException e) {
+                    log.error("User snapshot could not be written: " + e.getMessage(), e);
+                }
+            }
+            if (logins != null) {
+                try {
+                    logins.finish();
+                } catch (IOException e) {
+                    log.error("Login index could not be written: " + e.getMessage(), e);
+                }
+            }
+        }
+
+        private void abort() {
+            log.warnv("User listing was not read completely, the current indexes stay in place");
+            if (search != null) {
+                search.abort();
+            }
+            if (rows != null) {
+                rows.abort();
+            }
+            if (logins != null) {
+                logins.abort();
+            }
+        }
+    }
+
+    private OffHeapLoginIndex.Build startLoginIndexRebuild() {
+        try {
+            return loginIndex == null ? null : loginIndex.startRebuild();
+        } catch (IOException e) {
+            log.error("Login index could not be rebuilt: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private UserSnapshot.Rewrite startSnapshotRewrite() {
+        try {
+            return snapshot == null ? null : snapshot.startRewrite();
+        } catch (IOException e) {
+            log.error("User snapshot could not be rewritten: " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /*
+     * Runs onExhausted once the stream has been read to the end, or onAbandoned if it is closed before that.
+     */
+    private static <T> Stream<T> whenExhausted(Stream<T> stream, Runnable onExhausted, Runnable onAbandoned) {
+        Spliterator<T> source = stream.spliterator();
+        boolean[]      done   = {false};
+        Spliterator<T> wrapped = new Spliterators.AbstractSpliterator<>(source.estimateSize(), source.characteristics()) {
+            @Override
+            public boolean tryAdvance(Consumer<? super T> consumer) {
+                if (source.tryAdvance(consumer)) {
+                    return true;
+                }
+                if (!done[0]) {
+                    done[0] = true;
+                    onExhausted.run();
+                }
+                return false;
+            }
+        };
+        return StreamSupport.stream(wrapped, false).onClose(() -> {
+            try {
+                if (!done[0]) {
+                    done[0] = true;
+                    onAbandoned.run();
+                }
+            } finally {
+                stream.close();
+            }
+        });
     }
     
     public int getUsersCount(String search) {
-        if (search == null || search.isEmpty()) {
-            return Optional.ofNullable(doQuery(queryConfigurations.getCount(), null, this::readInt)).orElse(0);
+        if (isAllUsersSearch(search)) {
+            return getCachedCount(countKey(null), this::countAllUsers);
+        } else if (isIndexSearch(search)) {
+            return getCachedCount(countKey(search), key -> searchIndex.count(UserSearchIndex.toPrefix(search)));
         } else {
-            String query = String.format("select count(*) from (%s) count", queryConfigurations.getFindBySearchTerm());
-            return Optional.ofNullable(doQuery(query, null, this::readInt, search)).orElse(0);
+            return getCachedCount(countKey(search), key -> {
+                String query = String.format("select count(*) from (%s) count", PagingUtil.withoutOrderBy(queryConfigurations.getFindBySearchTerm()));
+                return doQuery(OperationClass.SEARCH, query, null, this::readInt, typed(queryConfigurations.getFindBySearchTerm(), search));
+            });
+        }
+    }
+
+    /*
+     * Counts are requested by the admin console on every listing, so results are kept for a short time. Failed
+     * queries are not cached.
+     */
+    public int getCachedCount(String key, Function<String, Integer> counter) {
+        return Optional.ofNullable(countCache.get(key, counter)).orElse(0);
+    }
+
+    private static String countKey(String search) {
+        return search == null || search.isEmpty() ? "all" : "search:" + search;
+    }
+
+    private Integer countAllUsers(String key) {
+        if (queryConfigurations.isApproximateCount()) {
+            Integer estimate = doQuery(OperationClass.SEARCH, queryConfigurations.getRDBMS().getApproximateCountQuery(), null, this::readInt, queryConfigurations.getApproximateCountTable());
+            if (estimate != null && estimate > 0) {
+                return estimate;
+            }
+            log.debugv("No row estimate available for table {0}, falling back to exact count", queryConfigurations.getApproximateCountTable());
         }
+        return doQuery(OperationClass.SEARCH, queryConfigurations.getCount(), null, this::readInt);
     }
     
     
     public Map<String, String> findUserById(String id) {
-        return Optional.ofNullable(doQuery(queryConfigurations.getFindById(), null, this::readMap, id))
-                       .orElse(Collections.emptyList())
-                       .stream().findFirst().orElse(null);
+        Map<String, String> cached = userCache.get(id);
+        if (cached != null) {
+            adaptiveTtl.recordHit();
+            return cached;
+        }
+        return loadUserById(id);
     }
-    
+
+    /*
+     * Reads the user from the database, bypassing the user cache, and refreshes all local copies of the row.
+     * If the last known row is still in the cache and the database does not answer within the stale budget (or
+     * is unavailable), that row is returned and marked stale while the refresh continues in the background.
+     */
+    public Map<String, String> loadUserById(String id) {
+        Map<String, String> lastKnown = userCache.getStale(id);
+        if (lastKnown == null) {
+            try {
+                return reloadUser(id).orElse(null);
+            } catch (IllegalStateException e) {
+                return fromSnapshot(snapshot == null ? null : snapshot.get(id));
+            }
+        }
+        try {
+            return refresh(id).get(staleBudgetMillis, TimeUnit.MILLISECONDS).orElse(null);
+        } catch (TimeoutException | ExecutionException e) {
+            log.warnv("Database did not answer in time, serving last known data of user {0}", id);
+            staleIds.add(id);
+            return lastKnown;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return lastKnown;
+        }
+    }
+
+    /*
+     * Starts a refresh of the user in the background, or joins the one already running, so there is at most one
+     * per user. If the refresh queue is full, the returned future fails right away.
+     */
+    private CompletableFuture<Optional<Map<String, String>>> refresh(String id) {
+        CompletableFuture<Optional<Map<String, String>>> running = refreshes.get(id);
+        if (running != null) {
+            return running;
+        }
+        CompletableFuture<Optional<Map<String, String>>> started = new CompletableFuture<>();
+        running = refreshes.putIfAbsent(id, started);
+        if (running != null) {
+            return running;
+        }
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    started.complete(reloadUser(id));
+                } catch (RuntimeException e) {
+                    started.completeExceptionally(e);
+                } finally {
+                    refreshes.remove(id, started);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            refreshes.remove(id, started);
+            started.completeExceptionally(e);
+        }
+        return started;
+    }
+
+    private Optional<Map<String, String>> reloadUser(String id) {
+        List<Map<String, String>> users = doQuery(OperationClass.LOOKUP, dataSourceProvider.getReadDataSource(idKey(id)), 1, queryConfigurations.getFindById(), null, this::readMap, id);
+        if (users == null) {
+            throw new IllegalStateException("user " + id + " could not be loaded");
+        }
+        Map<String, String> previous = userCache.getStale(id);
+        boolean             wasStale = staleIds.remove(id);
+        if (users.isEmpty()) {
+            forget(id);
+            if (wasStale && previous != null) {
+                usersChanged.accept(List.of(previous));
+            }
+            return Optional.empty();
+        }
+        if (adaptiveTtl.isEnabled()) {
+            // only reloads by id refresh an expired copy, other reads would count as unchanged refreshes
+            adaptiveTtl.recordRefresh(id, users.get(0));
+        }
+        Map<String, String> user = remember(users.get(0));
+        if (wasStale && previous != null && !previous.equals(user)) {
+            // the stale row may have been cached by Keycloak meanwhile
+            usersChanged.accept(List.of(previous, user));
+        }
+        return Optional.of(user);
+    }
+
+    /*
+     * Whether the user's data was last served from a stale copy because the database was slow or unavailable.
+     */
+    public boolean isStale(String id) {
+        return staleIds.contains(id);
+    }
+
     public Optional<Map<String, String>> findUserByLoginName(String username, boolean isEmailLoginAllowed) {
+        String cachedId = loginCache.get(OffHeapLoginIndex.normalize(username));
+        Map<String, String> cachedUser = cachedId == null ? null : userCache.get(cachedId);
+        if (cachedUser != null && matchesLogin(cachedUser, username, isEmailLoginAllowed)) {
+            return Optional.of(cachedUser);
+        }
+        Optional<Map<String, String>> indexedUser = findUserByLoginIndex(username, isEmailLoginAllowed);
+        if (indexedUser.isPresent()) {
+            return indexedUser;
+        }
+        String              staleId   = loginCache.getStale(OffHeapLoginIndex.normalize(username));
+        Map<String, String> lastKnown = staleId == null ? null : userCache.getStale(staleId);
+        if (lastKnown != null && matchesLogin(lastKnown, username, isEmailLoginAllowed)) {
+            // same stale budget as the lookup by id; a user renamed meanwhile is looked up by the login name below
+            try {
+                Optional<Map<String, String>> reloaded = refresh(staleId).get(staleBudgetMillis, TimeUnit.MILLISECONDS);
+                if (reloaded.isPresent() && matchesLogin(reloaded.get(), username, isEmailLoginAllowed)) {
+                    return reloaded;
+                }
+            } catch (TimeoutException | ExecutionException e) {
+                log.warnv("Database did not answer in time, serving last known data of user {0}", staleId);
+                staleIds.add(staleId);
+                return Optional.of(lastKnown);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Optional.of(lastKnown);
+            }
+        }
+        List<Map<String, String>> users;
         if (isEmailLoginAllowed) {
-            return Optional.ofNullable(doQuery(queryConfigurations.getFindByUsernameOrEmail(), null, this::readMap, username))
-                    .orElse(Collections.emptyList())
-                    .stream().findFirst();
+            users = doQuery(OperationClass.LOOKUP, dataSourceProvider.getReadDataSource(loginKey(username)), 1, queryConfigurations.getFindByUsernameOrEmail(), null, this::readMap, username);
         } else {
-            return Optional.ofNullable(doQuery(queryConfigurations.getFindByUsername(), null, this::readMap, username))
-                    .orElse(Collections.emptyList())
-                    .stream().findFirst();
+            users = doQuery(OperationClass.LOOKUP, dataSourceProvider.getReadDataSource(loginKey(username)), 1, queryConfigurations.getFindByUsername(), null, this::readMap, username);
+        }
+        if (users == null) {
+            Map<String, String> snapshotUser = snapshot == null ? null : snapshot.findByLogin(username);
+            return Optional.ofNullable(snapshotUser).filter(u -> matchesLogin(u, username, isEmailLoginAllowed)).map(this::fromSnapshot);
+        }
+        return users.stream().findFirst().map(this::remember);
+    }
+
+    /*
+     * Resolves the login name to an id with the off-heap login index and loads the user by primary key. The index
+     * only holds key hashes, so the loaded user must match the login name; misses fall back to the login query.
+     */
+    private Optional<Map<String, String>> findUserByLoginIndex(String login, boolean isEmailLoginAllowed) {
+        if (loginIndex == null || !loginIndex.isReady()) {
+            return Optional.empty();
+        }
+        String id = loginIndex.find(login);
+        if (id == null) {
+            return Optional.empty();
         }
+        return Optional.ofNullable(findUserById(id)).filter(u -> matchesLogin(u, login, isEmailLoginAllowed));
+    }
+
+    private static boolean matchesLogin(Map<String, String> user, String login, boolean isEmailLoginAllowed) {
+        String normalized = OffHeapLoginIndex.normalize(login);
+        return normalized != null && (normalized.equals(OffHeapLoginIndex.normalize(user.get("username")))
+                                      || (isEmailLoginAllowed && normalized.equals(OffHeapLoginIndex.normalize(user.get("email")))));
+    }
 
+    /*
+     * Keeps a user row read from the database in the user cache, the search index and the snapshot.
+     */
+    private Map<String, String> remember(Map<String, String> user) {
+        String id = user.get("id");
+        if (id == null) {
+            return user;
+        }
+        cacheUser(user);
+        if (searchIndex != null) {
+            searchIndex.update(user);
+        }
+        if (snapshot != null) {
+            snapshot.put(user);
+        }
+        return user;
+    }
+
+    /*
+     * Loads the users returned by the warm-up query (ids of recently active users) into the user cache in the
+     * background, in batches, so a freshly started node does not send every first login to the database.
+     */
+    public void warmUp() {
+        if (!queryConfigurations.hasWarmUpQuery() || !userCache.isEnabled()) {
+            return;
+        }
+        Thread warmUp = new Thread(() -> {
+            long     start  = System.currentTimeMillis();
+            String   query  = queryConfigurations.getWarmUpQuery();
+            Object[] params = query.contains("?")
+                    ? new Object[]{Timestamp.from(Instant.now().minus(Duration.ofDays(queryConfigurations.getWarmUpDays())))}
+                    : new Object[0];
+            List<Map<String, String>> hotUsers = doQuery(OperationClass.SYNC, query, null, this::readMap, params);
+            if (hotUsers == null) {
+                log.warnv("Warm-up query failed, user cache starts empty");
+                return;
+            }
+            List<String> ids = hotUsers.stream().map(u -> u.get("id")).filter(Objects::nonNull).collect(Collectors.toList());
+            int loaded = 0;
+            for (int from = 0; from < ids.size() && loaded < maxCachedUsers; from += WARM_UP_BATCH_SIZE) {
+                Map<String, Map<String, String>> batch = findUsersByIds(OperationClass.SYNC, ids.subList(from, Math.min(from + WARM_UP_BATCH_SIZE, ids.size())));
+                if (batch == null) {
+                    log.warnv("Warm-up stopped after {0} users, loading a batch failed", loaded);
+                    break;
+                }
+                Collection<Map<String, String>> users = batch.values();
+                users.forEach(this::remember);
+                loaded += users.size();
+            }
+            log.infov("User cache warmed up with {0} of {1} recently active users in {2} ms", loaded, ids.size(), System.currentTimeMillis() - start);
+        }, "sql-user-provider-warm-up");
+        warmUp.setDaemon(true);
+        warmUp.start();
+    }
+
+    public void cacheUser(Map<String, String> user) {
+        String id = user.get("id");
+        if (id == null || !userCache.isEnabled()) {
+            return;
+        }
+        long ttl = adaptiveTtl.isEnabled() ? adaptiveTtl.ttl(id) : userCacheTtlMillis;
+        userCache.put(id, user, ttl);
+        for (String login : new String[]{user.get("username"), user.get("email")}) {
+            if (login != null && !login.isBlank()) {
+                loginCache.put(OffHeapLoginIndex.normalize(login), id, ttl);
+            }
+        }
+    }
+
+    private void forget(String id) {
+        userCache.invalidate(id);
+        adaptiveTtl.forget(id);
+        if (searchIndex != null) {
+            searchIndex.remove(id);
+        }
+        if (snapshot != null) {
+            snapshot.remove(id);
+        }
+    }
+
+    private Map<String, String> fromSnapshot(Map<String, String> user) {
+        if (user != null) {
+            staleIds.add(user.get("id"));
+            log.warnv("Database unavailable, serving user {0} from the local snapshot", user.get("id"));
+        }
+        return user;
+    }
+
+    /*
+     * Whether user data loaded at the given time (e.g. Keycloak's cached user) is recent enough to skip reloading
+     * it from the database.
+     */
+    public boolean isFresh(String id, long loadedAt) {
+        if (adaptiveTtl.isEnabled()) {
+            return adaptiveTtl.isFresh(id, loadedAt);
+        }
+        return System.currentTimeMillis() - loadedAt <= DEFAULT_FRESHNESS_MILLIS;
+    }
+
+    /*
+     * Starts polling the change feed, if configured.
+     */
+    public synchronized void startChangeFeed() {
+        if (queryConfigurations.hasChangeFeedQuery() && changeFeed == null) {
+            changeFeed = new ChangeFeedPoller(new ChangeFeedPoller.Source() {
+                @Override
+                public Long readChangeFeedHead() {
+                    return UserRepository.this.readChangeFeedHead();
+                }
+
+                @Override
+                public List<Map<String, String>> readChanges(long after) {
+                    return UserRepository.this.readChanges(after);
+                }
+
+                @Override
+                public List<Map<String, String>> refreshUsers(Collection<String> ids) {
+                    return UserRepository.this.refreshUsers(ids);
+                }
+            }, users -> usersChanged.accept(users), System::currentTimeMillis);
+            changeFeed.start(queryConfigurations.getChangeFeedInterval() * 1000L);
+        }
+    }
+
+    /*
+     * Receives the old and new rows of users found changed in the background (change feed, refresh of stale
+     * users), to evict them from Keycloak's user cache.
+     */
+    public void onUsersChanged(Consumer<Collection<Map<String, String>>> usersChanged) {
+        this.usersChanged = usersChanged;
+    }
+
+    Long readChangeFeedHead() {
+        String query = String.format("select max(change_feed.seq) as seq from (%s) change_feed", PagingUtil.withoutOrderBy(queryConfigurations.getChangeFeedQuery()));
+        List<Map<String, String>> head = doQuery(OperationClass.SYNC, query, null, this::readMap, typed(queryConfigurations.getChangeFeedQuery(), Long.MIN_VALUE));
+        if (head == null) {
+            throw new IllegalStateException("change feed query failed");
+        }
+        String seq = head.isEmpty() ? null : head.get(0).get("seq");
+        return seq == null ? Long.MIN_VALUE : Long.parseLong(seq.trim());
+    }
+
+    List<Map<String, String>> readChanges(long after) {
+        List<Map<String, String>> changes = doQuery(OperationClass.SYNC, queryConfigurations.getChangeFeedQuery(), new PagingUtil.Pageable(0, ChangeFeedPoller.BATCH_SIZE), this::readMap, after);
+        if (changes == null) {
+            throw new IllegalStateException("change feed query failed");
+        }
+        return changes;
+    }
+
+    /*
+     * Evicts the users from the caches and reloads them into the caches, search index and snapshot. Returns the
+     * evicted and the reloaded rows; users no longer in the database are dropped from all local copies and
+     * returned with their id only. If the users can not be reloaded, nothing is evicted and an
+     * IllegalStateException is thrown, so the change feed tries again.
+     */
+    public List<Map<String, String>> refreshUsers(Collection<String> ids) {
+        Map<String, Map<String, String>> reloaded = findUsersByIds(OperationClass.SYNC, ids);
+        if (reloaded == null) {
+            throw new IllegalStateException("changed users could not be reloaded");
+        }
+        List<Map<String, String>> affected = new ArrayList<>();
+        for (String id : ids) {
+            Map<String, String> cached = userCache.getStale(id);
+            if (cached != null) {
+                affected.add(cached);
+                evictLogin(cached.get("username"));
+                evictLogin(cached.get("email"));
+            }
+            evictUser(id);
+        }
+        for (String id : ids) {
+            Map<String, String> user = reloaded.get(id);
+            if (user == null) {
+                forget(id);
+                affected.add(Map.of("id", id));
+            } else {
+                affected.add(remember(user));
+            }
+        }
+        countCache.clear();
+        return affected;
+    }
+
+    private boolean isSearchIndexReady() {
+        return searchIndex != null && searchIndex.isReady();
+    }
+
+    /*
+     * With the search index, a search for "*" matches all users; it is answered like a listing without search
+     * instead of scanning all terms of the index.
+     */
+    private boolean isAllUsersSearch(String search) {
+        return search == null || search.isEmpty() || (isSearchIndexReady() && UserSearchIndex.toPrefix(search).isBlank());
+    }
+
+    /*
+     * Only plain prefix terms are answered from the index, everything else goes to the search term query.
+     */
+    private boolean isIndexSearch(String search) {
+        return isSearchIndexReady() && UserSearchIndex.isPrefixSearch(search);
+    }
+
+    /*
+     * Fetches many users at once by filtering the 'List All Users' query by id. The ids are sent as one array
+     * parameter where the driver supports it and a batch array type is configured, otherwise in "in" lists no
+     * longer than the database accepts. The result is keyed by user id; ids without a row are missing. If a
+     * query fails or is rejected, the whole batch fails with null, so callers never take the users of a failed
+     * chunk for missing ones. The operation class is the caller's, so background loads (warm-up, change feed) do
+     * not use the login permits.
+     */
+    private Map<String, Map<String, String>> findUsersByIds(OperationClass operationClass, Collection<String> ids) {
+        Map<String, Map<String, String>> users = new LinkedHashMap<>();
+        List<String> distinctIds = ids.stream().filter(Objects::nonNull).distinct().collect(Collectors.toList());
+        if (distinctIds.isEmpty()) {
+            return users;
+        }
+        RDBMS rdbms = queryConfigurations.getRDBMS();
+        if (rdbms.isArrayBindingSupported() && queryConfigurations.hasBatchArrayType()) {
+            String query = String.format("select * from (%s) batch_query where batch_query.id = any(?)", PagingUtil.withoutOrderBy(queryConfigurations.getListAll()));
+            return addUsers(users, doQuery(operationClass, query, null, this::readMap, new ArrayParameter(queryConfigurations.getBatchArrayType(), distinctIds.toArray())));
+        }
+        // the ids are bound like the parameter of the single lookup by id
+        List<ParameterType> idTypes   = queryConfigurations.getParameterTypes(queryConfigurations.getFindById());
+        int                 chunkSize = rdbms.getMaxInListSize();
+        for (int from = 0; from < distinctIds.size(); from += chunkSize) {
+            List<String> chunk        = distinctIds.subList(from, Math.min(from + chunkSize, distinctIds.size()));
+            String       placeholders = String.join(", ", Collections.nCopies(chunk.size(), "?"));
+            String       query        = String.format("select * from (%s) batch_query where batch_query.id in (%s)", PagingUtil.withoutOrderBy(queryConfigurations.getListAll()), placeholders);
+            Object[]     params       = idTypes.isEmpty() ? chunk.toArray() : chunk.stream().map(id -> new TypedParameter(idTypes.get(0), id)).toArray();
+            if (addUsers(users, doQuery(operationClass, query, null, this::readMap, params)) == null) {
+                return null;
+            }
+        }
+        return users;
+    }
+
+    private static Map<String, Map<String, String>> addUsers(Map<String, Map<String, String>> users, List<Map<String, String>> rows) {
+        if (rows == null) {
+            return null;
+        }
+        rows.forEach(row -> users.put(row.get("id"), row));
+        return users;
     }
 
     public List<Map<String, String>> findUsers(String search, PagingUtil.Pageable pageable) {
-        if (search == null || search.isEmpty()) {
-            return doQuery(queryConfigurations.getListAll(), pageable, this::readMap);
+        if (isAllUsersSearch(search)) {
+            return findPage(queryConfigurations.getListAll(), countKey(null), pageable);
+        }
+        if (isIndexSearch(search)) {
+            return findUsersFromIndex(search, pageable);
+        }
+        return findPage(queryConfigurations.getFindBySearchTerm(), countKey(search), pageable, search);
+    }
+
+    /*
+     * Unpaged searches can return the whole user table; with streaming enabled they are read lazily. Only prefix
+     * searches the index answers are loaded at once, by the ids it returns.
+     */
+    public Stream<Map<String, String>> findUsersStream(String search) {
+        if (!queryConfigurations.isStreamResults() || isIndexSearch(search)) {
+            return Optional.ofNullable(findUsers(search, null)).orElse(Collections.emptyList()).stream();
+        }
+        if (isAllUsersSearch(search)) {
+            return doQueryStream(OperationClass.SEARCH, queryConfigurations.getListAll(), null);
+        }
+        return doQueryStream(OperationClass.SEARCH, queryConfigurations.getFindBySearchTerm(), null, search);
+    }
+
+    /*
+     * Answers the search from the in-memory index and loads the matching page of users in one batch. Users that
+     * vanished from the database since the index was built are dropped from the index on the way, but only when
+     * the whole batch was read.
+     */
+    private List<Map<String, String>> findUsersFromIndex(String search, PagingUtil.Pageable pageable) {
+        List<String> ids = pageable == null
+                ? searchIndex.search(UserSearchIndex.toPrefix(search), 0, -1)
+                : searchIndex.search(UserSearchIndex.toPrefix(search), pageable.getFirstResult(), pageable.getMaxResults());
+        Map<String, Map<String, String>> rows = findUsersByIds(OperationClass.SEARCH, ids);
+        if (rows == null) {
+            return null;
+        }
+        List<Map<String, String>> users = new ArrayList<>(rows.size());
+        for (String id : ids) {
+            Map<String, String> user = rows.get(id);
+            if (user != null) {
+                remember(user);
+                users.add(user);
+            } else {
+                searchIndex.remove(id);
+            }
+        }
+        return users;
+    }
+
+    public List<Map<String, String>> findUsersByAttributes(Map<String, String> searchParams, PagingUtil.Pageable pageable) {
+        AttributeSearchQuery search = AttributeSearchQuery.of(queryConfigurations.getListAll(), searchParams);
+        return findPage(search.getQuery(), search.getCacheKey(), pageable, search.getParams());
+    }
+
+    public int getUsersCountByAttributes(Map<String, String> searchParams) {
+        AttributeSearchQuery search = AttributeSearchQuery.of(queryConfigurations.getListAll(), searchParams);
+        return getCachedCount(search.getCacheKey(), key -> {
+            String query = String.format("select count(*) from (%s) count", PagingUtil.withoutOrderBy(search.getQuery()));
+            return doQuery(OperationClass.SEARCH, query, null, this::readInt, search.getParams());
+        });
+    }
+
+    /*
+     * Counts the users among the given ids (e.g. the members of a group) that the search term query finds.
+     * Returns null if a query fails.
+     */
+    public Integer countUsersAmong(Collection<String> ids, String search) {
+        if (isAllUsersSearch(search)) {
+            return countRowsAmong(ids, queryConfigurations.getListAll());
+        }
+        return countRowsAmong(ids, queryConfigurations.getFindBySearchTerm(), typed(queryConfigurations.getFindBySearchTerm(), search));
+    }
+
+    /*
+     * Counts the users among the given ids that the attribute search finds. Returns null if a query fails.
+     */
+    public Integer countUsersByAttributesAmong(Collection<String> ids, Map<String, String> searchParams) {
+        AttributeSearchQuery search = AttributeSearchQuery.of(queryConfigurations.getListAll(), searchParams);
+        return countRowsAmong(ids, search.getQuery(), search.getParams());
+    }
+
+    /*
+     * Counts the rows of the search query whose id is one of the given ids, with the ids bound like in
+     * findUsersByIds: one array parameter where supported, otherwise "in" lists no longer than the database
+     * accepts, whose counts are added up. A failed chunk fails the whole count.
+     */
+    private Integer countRowsAmong(Collection<String> ids, String searchQuery, Object... searchParams) {
+        List<String> distinctIds = ids.stream().filter(Objects::nonNull).distinct().collect(Collectors.toList());
+        if (distinctIds.isEmpty()) {
+            return 0;
+        }
+        String countQuery = String.format("select count(*) from (%s) member_count where member_count.id", PagingUtil.withoutOrderBy(searchQuery));
+        RDBMS  rdbms      = queryConfigurations.getRDBMS();
+        if (rdbms.isArrayBindingSupported() && queryConfigurations.hasBatchArrayType()) {
+            Object[] params = Stream.concat(Arrays.stream(searchParams), Stream.of(new ArrayParameter(queryConfigurations.getBatchArrayType(), distinctIds.toArray()))).toArray();
+            return doQuery(OperationClass.SEARCH, countQuery + " = any(?)", null, this::readInt, params);
+        }
+        List<ParameterType> keyTypes  = queryConfigurations.getParameterTypes(queryConfigurations.getFindById());
+        int                 chunkSize = rdbms.getMaxInListSize();
+        int                 count     = 0;
+        for (int from = 0; from < distinctIds.size(); from += chunkSize) {
+            List<String> chunk        = distinctIds.subList(from, Math.min(from + chunkSize, distinctIds.size()));
+            String       placeholders = String.join(", ", Collections.nCopies(chunk.size(), "?"));
+            Stream<?>    keys         = keyTypes.isEmpty() ? chunk.stream() : chunk.stream().map(id -> new TypedParameter(keyTypes.get(0), id));
+            Integer      chunkCount   = doQuery(OperationClass.SEARCH, countQuery + " in (" + placeholders + ")", null, this::readInt,
+                                                Stream.concat(Arrays.stream(searchParams), keys).toArray());
+            if (chunkCount == null) {
+                return null;
+            }
+            count += chunkCount;
+        }
+        return count;
+    }
+
+    private List<Map<String, String>> findPage(String query, String countKey, PagingUtil.Pageable pageable, Object... params) {
+        if (pageable != null && queryConfigurations.isWindowCount()) {
+            return findPageCounting(query, countKey, pageable, params);
+        }
+        return doQuery(OperationClass.SEARCH, query, pageable, this::readMap, params);
+    }
+
+    /*
+     * Fetches the page together with count(*) over() and keeps the total in the count cache, so the getUsersCount
+     * call the admin console makes right after the listing does not run the search a second time.
+     */
+    private List<Map<String, String>> findPageCounting(String query, String countKey, PagingUtil.Pageable pageable, Object... params) {
+        String countingQuery = PagingUtil.formatScriptWithPageableAndCount(query, pageable, queryConfigurations.getRDBMS());
+        List<Map<String, String>> users = doQuery(OperationClass.SEARCH, countingQuery, null, this::readMap, typed(query, params));
+        if (users == null) {
+            return null;
+        }
+        Integer total = null;
+        for (Map<String, String> user : users) {
+            String column = user.keySet().stream().filter(PagingUtil.TOTAL_COUNT_COLUMN::equalsIgnoreCase).findFirst().orElse(null);
+            String value  = column == null ? null : user.remove(column);
+            if (total == null && value != null) {
+                total = Integer.valueOf(value.trim());
+            }
+        }
+        if (total == null && pageable.getFirstResult() == 0) {
+            // an empty first page means nothing matched, beyond the first page the total is unknown
+            total = 0;
+        }
+        if (total != null) {
+            countCache.put(countKey, total);
+        }
+        return users;
+    }
+
+    public Set<RoleMapping> findRoleMappings(String id) {
+        if (!queryConfigurations.hasRoleMappings() || id == null) {
+            return Collections.emptySet();
+        }
+        Set<RoleMapping> roleMappings = roleMappingCache.get(id);
+        if (roleMappings == null) {
+            List<Map<String, String>> rows = doQuery(OperationClass.LOOKUP, dataSourceProvider.getReadDataSource(idKey(id)), 0, queryConfigurations.getFindRoleMappings(), null, this::readMap, id);
+            if (rows == null) {
+                // query failed, do not cache the error
+                return Collections.emptySet();
+            }
+            roleMappings = rows.stream()
+                               .filter(row -> row.get("role") != null)
+                               .map(row -> new RoleMapping(trimToNull(row.get("client")), row.get("role").trim()))
+                               .collect(Collectors.toUnmodifiableSet());
+            roleMappingCache.put(id, roleMappings);
+        }
+        return roleMappings;
+    }
+
+    /*
+     * Evicts the user on this node and tells the other nodes of the cluster to do the same.
+     */
+    public void invalidateUser(String id) {
+        evictUser(id);
+        invalidationBus.publish(UserInvalidationEvent.users(componentId, Set.of(id), Set.of()));
+    }
+
+    /*
+     * Like invalidateUser, for changes where only the login name is known. Each node resolves it with its own
+     * login cache.
+     */
+    public void invalidateLogin(String login) {
+        evictLogin(login);
+        invalidationBus.publish(UserInvalidationEvent.users(componentId, Set.of(), Set.of(login)));
+    }
+
+    public void invalidateAll() {
+        evictAll();
+        invalidationBus.publish(UserInvalidationEvent.allUsers(componentId));
+    }
+
+    /*
+     * Applies an invalidation received from another node.
+     */
+    public void onInvalidation(UserInvalidationEvent event) {
+        if (event.isAll()) {
+            evictAll();
+            return;
+        }
+        event.getIds().forEach(this::evictUser);
+        event.getLogins().forEach(this::evictLogin);
+    }
+
+    private void evictUser(String id) {
+        log.debugv("Invalidating cached data for user {0}", id);
+        roleMappingCache.invalidate(id);
+        userCache.invalidate(id);
+    }
+
+    private void evictLogin(String login) {
+        if (login == null) {
+            return;
+        }
+        String normalized = OffHeapLoginIndex.normalize(login);
+        String id         = loginCache.getStale(normalized);
+        loginCache.invalidate(normalized);
+        if (id != null) {
+            evictUser(id);
+        }
+    }
+
+    private void evictAll() {
+        log.debugv("Invalidating all cached user data");
+        roleMappingCache.clear();
+        countCache.clear();
+        userCache.clear();
+        loginCache.clear();
+    }
+
+    public synchronized void close() {
+        refreshExecutor.shutdownNow();
+        if (changeFeed != null) {
+            changeFeed.close();
+        }
+        if (snapshot != null) {
+            snapshot.close();
+        }
+        if (loginIndex != null) {
+            loginIndex.close();
         }
-        return doQuery(queryConfigurations.getFindBySearchTerm(), pageable, this::readMap, search);
     }
     
     public boolean validateCredentials(String username, String password, boolean isEmailLoginAllowed) {
@@ -151,12 +1210,21 @@ public class UserRepository {
         boolean userValidated = false;
 
         if (isEmailLoginAllowed) {
-            hashAndSalt = Optional.ofNullable(doQuery(queryConfigurations.getFindPasswordHash(), null, this::readMap, username)).orElse(Collections.emptyList());
+            hashAndSalt = Optional.ofNullable(doQuery(OperationClass.CREDENTIAL, dataSourceProvider.getReadDataSource(loginKey(username)), 1, queryConfigurations.getFindPasswordHash(), null, this::readMap, username)).orElse(Collections.emptyList());
         } else {
-            hashAndSalt = Optional.ofNullable(doQuery(queryConfigurations.getFindPasswordHashUsernameOnly(), null, this::readMap, username)).orElse(Collections.emptyList());
+            hashAndSalt = Optional.ofNullable(doQuery(OperationClass.CREDENTIAL, dataSourceProvider.getReadDataSource(loginKey(username)), 1, queryConfigurations.getFindPasswordHashUsernameOnly(), null, this::readMap, username)).orElse(Collections.emptyList());
+        }
+        if (hashAndSalt.isEmpty()) {
+            // unknown user, or the query was rejected or failed
+            log.infov("Validation false for user {0}, no password hash found", username);
+            return false;
         }
         hash = hashAndSalt.get(0).get("hash");
         salt = hashAndSalt.get(0).get("salt");
+        if (hash == null) {
+            log.infov("Validation false for user {0}, no password hash found", username);
+            return false;
+        }
 
         String hashFunction = queryConfigurations.getHashFunction();
 
@@ -177,47 +1245,62 @@ public class UserRepository {
         log.infov("Updating credentials for user {0}", username);
         // throw new NotImplementedException("Password update not supported");
 
-        Optional<DataSource> dataSourceOpt = dataSourceProvider.getDataSource();
-        if (dataSourceOpt.isPresent()) {
-            DataSource dataSource = dataSourceOpt.get();
-            try (Connection c = dataSource.getConnection()) {
-                String query = queryConfigurations.updateCredentials();
-                // String query = "update kundenPasswoerter set hash = ?, salt  = ? where strKundenKuerzel = ?";
-                log.debugv("Query: {0} hash: {1} salt: {2} username: {3}", query, hashAndSalt.get("hash"), hashAndSalt.get("salt"), username);
-                try (PreparedStatement statement = c.prepareStatement(query)) {
-                    statement.setString(1, hashAndSalt.get("hash"));
-                    statement.setString(2, hashAndSalt.get("salt"));
-                    statement.setString(3, username);
-                    statement.executeUpdate();
-                }
-            } catch (SQLException e) {
-                log.error(e.getMessage(), e);
-                return false;
+        DataSource dataSource = dataSourceProvider.getDataSource();
+        if (dataSource == null) {
+            log.warnv("No database available, update of user {0} failed", username);
+            return false;
+        }
+        Bulkhead.Permit permit = dataSourceProvider.acquire(OperationClass.CREDENTIAL);
+        if (permit == null) {
+            return false;
+        }
+        try (permit; Connection c = dataSource.getConnection()) {
+            String query = queryConfigurations.updateCredentials();
+            // String query = "update kundenPasswoerter set hash = ?, salt  = ? where strKundenKuerzel = ?";
+            log.debugv("Query: {0} hash: {1} salt: {2} username: {3}", query, hashAndSalt.get("hash"), hashAndSalt.get("salt"), username);
+            try (PreparedStatement statement = c.prepareStatement(query)) {
+                statement.setQueryTimeout(dataSourceProvider.getQueryTimeoutSeconds());
+                bindParameters(c, statement, queryConfigurations.getParameterTypes(query), hashAndSalt.get("hash"), hashAndSalt.get("salt"), username);
+                statement.executeUpdate();
             }
+        } catch (SQLException e) {
+            log.error(e.getMessage(), e);
+            dataSourceProvider.reportFailure(dataSource, e);
+            return false;
         }
+        pinToPrimary(username);
+        invalidateLogin(username);
         return true;
     }
 
     public boolean updateEmailAddress(String username, String emailAddress) {
         log.debugv("Updating email address for user {0}, new: {1}", username, emailAddress);
 
-        Optional<DataSource> dataSourceOpt = dataSourceProvider.getDataSource();
-        if (dataSourceOpt.isPresent()) {
-            DataSource dataSource = dataSourceOpt.get();
-            try (Connection c = dataSource.getConnection()) {
-                String query = queryConfigurations.updateEmailAddress();
-                // String query = "update tblKunden set strEmail = ? where strKundenKuerzel = ?";
-                log.debugv("Query: {0} username: {1} email address: {2} username: {3}", query, username, emailAddress, username);
-                try (PreparedStatement statement = c.prepareStatement(query)) {
-                    statement.setString(1, emailAddress);
-                    statement.setString(2, username);
-                    statement.executeUpdate();
-                }
-            } catch (SQLException e) {
-                log.error(e.getMessage(), e);
-                return false;
+        DataSource dataSource = dataSourceProvider.getDataSource();
+        if (dataSource == null) {
+            log.warnv("No database available, update of user {0} failed", username);
+            return false;
+        }
+        Bulkhead.Permit permit = dataSourceProvider.acquire(OperationClass.CREDENTIAL);
+        if (permit == null) {
+            return false;
+        }
+        try (permit; Connection c = dataSource.getConnection()) {
+            String query = queryConfigurations.updateEmailAddress();
+            // String query = "update tblKunden set strEmail = ? where strKundenKuerzel = ?";
+            log.debugv("Query: {0} username: {1} email address: {2} username: {3}", query, username, emailAddress, username);
+            try (PreparedStatement statement = c.prepareStatement(query)) {
+                statement.setQueryTimeout(dataSourceProvider.getQueryTimeoutSeconds());
+                bindParameters(c, statement, queryConfigurations.getParameterTypes(query), emailAddress, username);
+                statement.executeUpdate();
             }
+        } catch (SQLException e) {
+            log.error(e.getMessage(), e);
+            dataSourceProvider.reportFailure(dataSource, e);
+            return false;
         }
+        pinToPrimary(username);
+        invalidateLogin(username);
         return true;
     }
     
@@ -225,6 +1308,62 @@ public class UserRepository {
         return queryConfigurations.getAllowKeycloakDelete();
     }
 
+    /*
+     * Sends the user's reads to the primary for the read-your-writes window, by login name and, if known, by id.
+     */
+    private void pinToPrimary(String username) {
+        dataSourceProvider.pinToPrimary(loginKey(username));
+        String id = loginCache.getStale(OffHeapLoginIndex.normalize(username));
+        if (id != null) {
+            dataSourceProvider.pinToPrimary(idKey(id));
+        }
+    }
+
+    private static String idKey(String id) {
+        return "id:" + id;
+    }
+
+    private static String loginKey(String login) {
+        return "login:" + OffHeapLoginIndex.normalize(login);
+    }
+
+    /*
+     * A parameter of a generated query, bound with the type declared for the same column in a configured query.
+     */
+    private static class TypedParameter {
+        private final ParameterType type;
+        private final Object        value;
+
+        private TypedParameter(ParameterType type, Object value) {
+            this.type = type;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(value);
+        }
+    }
+
+    private static class ArrayParameter {
+        private final String   type;
+        private final Object[] values;
+
+        private ArrayParameter(String type, Object[] values) {
+            this.type = type;
+            this.values = values;
+        }
+
+        @Override
+        public String toString() {
+            return type + Arrays.toString(values);
+        }
+    }
+
+    private static String trimToNull(String value) {
+        return value == null || value.isBlank() ? null : value.trim();
+    }
+
     public boolean isSHA512(String hashFunction) {
         return hashFunction.toLowerCase().contains("sha-512");
     }
@@ -0,0 +1,540 @@
+package com.hstahlmann.dbuserprovider.persistence;
+
+import lombok.extern.jbosslog.JBossLog;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntBinaryOperator;
+
+/*
+ * In-memory prefix index over username, email, first and last name of the federated users. A prefix search
+ * yields user ids; the rows themselves are fetched from the database by id afterwards.
+ *
+ * The index built by a sync (see Rebuild) is a set of sorted arrays: the lower-cased values (UTF-8, concatenated)
+ * with the number of their user, and the user ids with a hash of every user's values. A prefix search is a binary
+ * search followed by a range scan. With UUID ids and four values per user this takes about 130 bytes of heap per
+ * user. Users whose values changed since the sync are kept in a map next to the arrays, whose entries replace
+ * those of the arrays until the next sync; lookups of unchanged users do not add to it.
+ *
+ * The index only answers searches once it has been built from a full user listing. Changes made while a sync
+ * builds the next index are applied to the current one and replayed on the new one when it replaces the current.
+ */
+@JBossLog
+public class UserSearchIndex {
+
+    private static final String[] INDEXED_COLUMNS = {"username", "email", "firstName", "lastName"};
+    private static final int      MAX_DATA_SIZE   = Integer.MAX_VALUE - 8;
+
+    private volatile Index         index    = new Index(Terms.EMPTY);
+    private volatile boolean       ready;
+    // rebuilds in progress, guarded by this
+    private final    List<Rebuild> rebuilds = new ArrayList<>();
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /*
+     * Builds a new index next to the current one, which keeps answering searches until the new one is complete.
+     */
+    public Rebuild startRebuild() {
+        return new Rebuild();
+    }
+
+    public void update(Map<String, String> user) {
+        String id = user.get("id");
+        if (id != null) {
+            apply(id, terms(user));
+        }
+    }
+
+    public void remove(String id) {
+        if (id != null) {
+            apply(id, List.of());
+        }
+    }
+
+    private synchronized void apply(String id, List<String> userTerms) {
+        index.apply(id, userTerms);
+        for (Rebuild rebuild : rebuilds) {
+            rebuild.changes.put(id, userTerms);
+        }
+    }
+
+    /*
+     * Collects the users of a sync in growable arrays and sorts them once the listing has been read.
+     */
+    public class Rebuild {
+        private final ByteArrayOutputStream     ids         = new ByteArrayOutputStream();
+        private final IntList                   idOffsets   = new IntList();
+        private final LongList                  hashes      = new LongList();
+        private final ByteArrayOutputStream     terms       = new ByteArrayOutputStream();
+        private final IntList                   termOffsets = new IntList();
+        private final IntList                   termUsers   = new IntList();
+        // updates and removals made while the rebuild runs, guarded by the index
+        private final Map<String, List<String>> changes     = new LinkedHashMap<>();
+        private       boolean                   tooLarge;
+
+        private Rebuild() {
+            idOffsets.add(0);
+            termOffsets.add(0);
+            synchronized (UserSearchIndex.this) {
+                rebuilds.add(this);
+            }
+        }
+
+        public void add(Map<String, String> user) {
+            String id = user.get("id");
+            if (id == null || tooLarge) {
+                return;
+            }
+            List<String> userTerms = terms(user);
+            byte[]       idBytes   = bytes(id);
+            long         size      = terms.size() + (long) userTerms.stream().mapToInt(t -> 4 * t.length()).sum();
+            if (ids.size() + (long) idBytes.length > MAX_DATA_SIZE || size > MAX_DATA_SIZE) {
+                tooLarge = true;
+                return;
+            }
+            ids.writeBytes(idBytes);
+            idOffsets.add(ids.size());
+            hashes.add(hash(userTerms));
+            for (String term : userTerms) {
+                terms.writeBytes(bytes(term));
+                termOffsets.add(terms.size());
+                termUsers.add(hashes.size() - 1);
+            }
+        }
+
+        public void finish() {
+            if (tooLarge) {
+                abort();
+                log.errorv("Search index exceeds {0} bytes of ids or values, the current index stays in place", MAX_DATA_SIZE);
+                return;
+            }
+            Terms built = build();
+            synchronized (UserSearchIndex.this) {
+                Index rebuilt = new Index(built);
+                changes.forEach(rebuilt::apply);
+                index = rebuilt;
+                rebuilds.remove(this);
+                ready = true;
+            }
+            log.infov("Search index built with {0} users and {1} terms", built.userCount(), built.users.length);
+        }
+
+        /*
+         * Drops the rebuild, e.g. when the sync stopped before reading all users; the current index stays in place.
+         */
+        public void abort() {
+            synchronized (UserSearchIndex.this) {
+                rebuilds.remove(this);
+            }
+        }
+
+        /*
+         * Sorts the users by id, keeping the last of several rows with the same id, and their values by value.
+         */
+        private Terms build() {
+            byte[] idData   = ids.toByteArray();
+            int[]  idOffset = idOffsets.toArray();
+            int    added    = idOffset.length - 1;
+            int[]  byId     = sort(range(added), (a, b) -> Arrays.compareUnsigned(idData, idOffset[a], idOffset[a + 1], idData, idOffset[b], idOffset[b + 1]));
+            int[]  number   = new int[added];
+            IntList kept    = new IntList();
+            for (int i = 0; i < added; i++) {
+                int user = byId[i];
+                if (i + 1 < added && Arrays.equals(idData, idOffset[user], idOffset[user + 1], idData, idOffset[byId[i + 1]], idOffset[byId[i + 1] + 1])) {
+                    number[user] = -1;
+                } else {
+                    number[user] = kept.size();
+                    kept.add(user);
+                }
+            }
+            ByteArrayOutputStream sortedIds       = new ByteArrayOutputStream(idData.length);
+            int[]                 sortedIdOffsets = new int[kept.size() + 1];
+            long[]                sortedHashes    = new long[kept.size()];
+            long[]                hashData        = hashes.toArray();
+            for (int i = 0; i < kept.size(); i++) {
+                int user = kept.get(i);
+                sortedIds.write(idData, idOffset[user], idOffset[user + 1] - idOffset[user]);
+                sortedIdOffsets[i + 1] = sortedIds.size();
+                sortedHashes[i] = hashData[user];
+            }
+
+            byte[]  termData   = terms.toByteArray();
+            int[]   termOffset = termOffsets.toArray();
+            int[]   termUser   = termUsers.toArray();
+            IntList live       = new IntList();
+            for (int term = 0; term < termUser.length; term++) {
+                if (number[termUser[term]] >= 0) {
+                    live.add(term);
+                }
+            }
+            int[] byTerm = sort(live.toArray(), (a, b) -> Arrays.compareUnsigned(termData, termOffset[a], termOffset[a + 1], termData, termOffset[b], termOffset[b + 1]));
+            ByteArrayOutputStream sortedTerms       = new ByteArrayOutputStream(termData.length);
+            int[]                 sortedTermOffsets = new int[byTerm.length + 1];
+            int[]                 sortedUsers       = new int[byTerm.length];
+            for (int i = 0; i < byTerm.length; i++) {
+                int term = byTerm[i];
+                sortedTerms.write(termData, termOffset[term], termOffset[term + 1] - termOffset[term]);
+                sortedTermOffsets[i + 1] = sortedTerms.size();
+                sortedUsers[i] = number[termUser[term]];
+            }
+            return new Terms(sortedIds.toByteArray(), sortedIdOffsets, sortedHashes, sortedTerms.toByteArray(), sortedTermOffsets, sortedUsers);
+        }
+    }
+
+    public List<String> search(String prefix, int firstResult, int maxResults) {
+        Index       current = index;
+        Terms       terms   = current.terms;
+        byte[]      from    = bytes(normalize(prefix));
+        BitSet      changed = current.changedUsers();
+        List<Match> matches = current.matches(from);
+        Set<String> ids     = new LinkedHashSet<>();
+        int         skip    = Math.max(firstResult, 0);
+        int         term    = terms.lowerBound(from);
+        int         end     = terms.upperBound(from);
+        int         next    = 0;
+        while ((term < end || next < matches.size()) && (maxResults < 0 || ids.size() < skip + maxResults)) {
+            if (next < matches.size() && (term >= end || terms.compare(term, matches.get(next).term) > 0)) {
+                ids.add(matches.get(next++).id);
+            } else {
+                int user = terms.users[term++];
+                if (!changed.get(user)) {
+                    ids.add(terms.id(user));
+                }
+            }
+        }
+        List<String> result = new ArrayList<>(ids);
+        return skip >= result.size() ? List.of() : result.subList(skip, result.size());
+    }
+
+    public int count(String prefix) {
+        Index  current = index;
+        Terms  terms   = current.terms;
+        byte[] from    = bytes(normalize(prefix));
+        BitSet users   = new BitSet(terms.userCount());
+        for (int term = terms.lowerBound(from), end = terms.upperBound(from); term < end; term++) {
+            users.set(terms.users[term]);
+        }
+        users.andNot(current.changedUsers());
+        return users.cardinality() + (int) current.matches(from).stream().map(match -> match.id).distinct().count();
+    }
+
+    /*
+     * Keycloak passes '*' as wildcard in search terms; the index always matches the beginning of a value.
+     */
+    public static String toPrefix(String search) {
+        return search == null ? null : search.replace("*", "");
+    }
+
+    /*
+     * Whether the index answers the search the way the search term query is meant to: a single term, optionally
+     * followed by the '*' wildcard. Terms with a leading or inner wildcard, quotes or several words are left to the
+     * search term query.
+     */
+    public static boolean isPrefixSearch(String search) {
+        if (search == null) {
+            return false;
+        }
+        String term = search.trim();
+        while (term.endsWith("*")) {
+            term = term.substring(0, term.length() - 1);
+        }
+        return !term.isEmpty() && term.chars().noneMatch(c -> c == '*' || c == '"' || Character.isWhitespace(c));
+    }
+
+    private static List<String> terms(Map<String, String> user) {
+        List<String> userTerms = new ArrayList<>(INDEXED_COLUMNS.length);
+        for (String column : INDEXED_COLUMNS) {
+            String value = normalize(getIgnoreCase(user, column));
+            if (value != null && !userTerms.contains(value)) {
+                userTerms.add(value);
+            }
+        }
+        return userTerms;
+    }
+
+    /*
+     * 64-bit FNV-1a over the user's values, to tell whether a user read later differs from the indexed one.
+     */
+    private static long hash(List<String> userTerms) {
+        long hash = 0xcbf29ce484222325L;
+        for (String term : userTerms) {
+            for (byte b : bytes(term)) {
+                hash ^= b & 0xff;
+                hash *= 0x100000001b3L;
+            }
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static String normalize(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        return value.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String getIgnoreCase(Map<String, String> user, String column) {
+        String value = user.get(column);
+        if (value != null) {
+            return value;
+        }
+        return user.entrySet().stream().filter(e -> e.getKey().equalsIgnoreCase(column)).map(Map.Entry::getValue).findFirst().orElse(null);
+    }
+
+    private static int[] range(int length) {
+        int[] values = new int[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = i;
+        }
+        return values;
+    }
+
+    /*
+     * Stable bottom-up merge sort of int keys, so the rebuild does not box every user and value.
+     */
+    private static int[] sort(int[] values, IntBinaryOperator comparator) {
+        int[] buffer = new int[values.length];
+        for (int width = 1; width < values.length; width *= 2) {
+            for (int from = 0; from < values.length; from += 2 * width) {
+                int middle = Math.min(from + width, values.length);
+                int to     = Math.min(from + 2 * width, values.length);
+                int i = from, j = middle, k = from;
+                while (i < middle && j < to) {
+                    buffer[k++] = comparator.applyAsInt(values[i], values[j]) <= 0 ? values[i++] : values[j++];
+                }
+                while (i < middle) {
+                    buffer[k++] = values[i++];
+                }
+                while (j < to) {
+                    buffer[k++] = values[j++];
+                }
+            }
+            int[] swap = values;
+            values = buffer;
+            buffer = swap;
+        }
+        return values;
+    }
+
+    /*
+     * The arrays built by a sync together with the users changed since. Changes are applied while holding the
+     * index's lock; readers only see complete entries of the concurrent map.
+     */
+    private static class Index {
+        private final Terms               terms;
+        private final Map<String, Change> changes = new ConcurrentHashMap<>();
+
+        private Index(Terms terms) {
+            this.terms = terms;
+        }
+
+        private void apply(String id, List<String> userTerms) {
+            int user = terms.user(bytes(id));
+            if (user >= 0 ? terms.hashes[user] == hash(userTerms) : userTerms.isEmpty()) {
+                changes.remove(id);
+                return;
+            }
+            List<byte[]> termBytes = new ArrayList<>(userTerms.size());
+            userTerms.forEach(term -> termBytes.add(bytes(term)));
+            changes.put(id, new Change(id, user, termBytes));
+        }
+
+        private BitSet changedUsers() {
+            BitSet users = new BitSet();
+            for (Change change : changes.values()) {
+                if (change.user >= 0) {
+                    users.set(change.user);
+                }
+            }
+            return users;
+        }
+
+        /*
+         * Values of changed users starting with the prefix, in the order of the arrays.
+         */
+        private List<Match> matches(byte[] prefix) {
+            List<Match> matches = new ArrayList<>();
+            for (Change change : changes.values()) {
+                for (byte[] term : change.terms) {
+                    if (term.length >= prefix.length && Arrays.equals(term, 0, prefix.length, prefix, 0, prefix.length)) {
+                        matches.add(new Match(term, change.id));
+                    }
+                }
+            }
+            matches.sort((a, b) -> Arrays.compareUnsigned(a.term, b.term));
+            return matches;
+        }
+    }
+
+    /*
+     * Sorted arrays of one sync: user ids (UTF-8, concatenated, with start offsets) with the hash of their values,
+     * and the values (UTF-8, concatenated, with start offsets) with the number of their user.
+     */
+    private static class Terms {
+        private static final Terms EMPTY = new Terms(new byte[0], new int[]{0}, new long[0], new byte[0], new int[]{0}, new int[0]);
+
+        private final byte[] ids;
+        private final int[]  idOffsets;
+        private final long[] hashes;
+        private final byte[] terms;
+        private final int[]  termOffsets;
+        private final int[]  users;
+
+        private Terms(byte[] ids, int[] idOffsets, long[] hashes, byte[] terms, int[] termOffsets, int[] users) {
+            this.ids = ids;
+            this.idOffsets = idOffsets;
+            this.hashes = hashes;
+            this.terms = terms;
+            this.termOffsets = termOffsets;
+            this.users = users;
+        }
+
+        private int userCount() {
+            return hashes.length;
+        }
+
+        private String id(int user) {
+            return new String(ids, idOffsets[user], idOffsets[user + 1] - idOffsets[user], StandardCharsets.UTF_8);
+        }
+
+        private int user(byte[] id) {
+            int low = 0, high = userCount() - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int result = Arrays.compareUnsigned(ids, idOffsets[middle], idOffsets[middle + 1], id, 0, id.length);
+                if (result == 0) {
+                    return middle;
+                }
+                if (result < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return -1;
+        }
+
+        private int compare(int term, byte[] value) {
+            return Arrays.compareUnsigned(terms, termOffsets[term], termOffsets[term + 1], value, 0, value.length);
+        }
+
+        /*
+         * First value not below the prefix.
+         */
+        private int lowerBound(byte[] prefix) {
+            int low = 0, high = users.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (compare(middle, prefix) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /*
+         * First value whose beginning sorts after the prefix, i.e. the end of the values starting with it.
+         */
+        private int upperBound(byte[] prefix) {
+            int low = 0, high = users.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                int start  = termOffsets[middle];
+                int end    = Math.min(termOffsets[middle + 1], start + prefix.length);
+                if (Arrays.compareUnsigned(terms, start, end, prefix, 0, prefix.length) <= 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    private static class Change {
+        private final String       id;
+        // number of the user in the arrays, -1 if the user is not in them
+        private final int          user;
+        private final List<byte[]> terms;
+
+        private Change(String id, int user, List<byte[]> terms) {
+            this.id = id;
+            this.user = user;
+            this.terms = terms;
+        }
+    }
+
+    private static class Match {
+        private final byte[] term;
+        private final String id;
+
+        private Match(byte[] term, String id) {
+            this.term = term;
+            this.id = id;
+        }
+    }
+
+    private static class IntList {
+        private int[] values = new int[16];
+        private int   size;
+
+        private void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[size++] = value;
+        }
+
+        private int get(int index) {
+            return values[index];
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    private static class LongList {
+        private long[] values = new long[16];
+        private int    size;
+
+        private void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[size++] = value;
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -0,0 +1,618 @@
+package com.hstahlmann.dbuserprovider.persistence;
+
+import lombok.extern.jbosslog.JBossLog;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+/*
+ * Local copy of the user rows read from the database, kept in an append-only binary file. It pre-warms the
+ * provider's user cache after a restart and answers read-only lookups while the database is unreachable.
+ *
+ * Every record is: length (int), kind (byte, 1 = row, 0 = removed), field count (short) and per field the name
+ * (short length + UTF-8) and the value (int length, -1 for null, + UTF-8). Lookups append the rows they read when
+ * these differ from the stored version, the sync rewrites the whole file. The part of the file present when it is
+ * opened is memory-mapped in segments. The heap only holds two tables of primitive longs (see LongTable): from a
+ * 64-bit hash of the id to the offset and a hash of the user's latest row, and from a 64-bit hash of every username
+ * and email to the offset of its row, about 100 bytes per user. Rows found by a hash are compared with the id or
+ * login name; two ids sharing a hash replace each other's entry.
+ *
+ * Appends are written by a background thread, so lookups neither wait for the disk nor for a rewrite or compaction
+ * of the file; rows arriving while the write queue is full are not appended. Readers use the current mapping,
+ * which a rewrite replaces as a whole once the new file has been read. Rows appended while a rewrite is written
+ * are recorded and appended to the new file after it replaced the current one, as the sync may have read them
+ * before they changed.
+ *
+ * Without a sync the file would grow with every changed row. Once it is more than twice the size of its current
+ * rows, it is compacted on the writer thread; rows read meanwhile are not appended.
+ */
+@JBossLog
+public class UserSnapshot implements Closeable {
+
+    private static final byte ROW          = 1;
+    private static final byte REMOVED      = 0;
+    private static final long SEGMENT_SIZE = 1L << 30;
+    private static final long COMPACT_MIN_SIZE = 16L << 20;
+    private static final int  WRITE_QUEUE_SIZE = 10000;
+
+    private final Path             file;
+    private final long             compactMinSize;
+    private final ExecutorService  writer;
+    private volatile Mapping       mapping;
+    private volatile boolean       compacting;
+    // rewrites in progress, guarded by this
+    private final    List<Rewrite> rewrites = new ArrayList<>();
+
+    public UserSnapshot(Path file) throws IOException {
+        this(file, COMPACT_MIN_SIZE);
+    }
+
+    UserSnapshot(Path file, long compactMinSize) throws IOException {
+        this.file = file;
+        this.compactMinSize = compactMinSize;
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        this.mapping = open();
+        this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(WRITE_QUEUE_SIZE), r -> {
+            Thread thread = new Thread(r, "sql-user-provider-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private Mapping open() throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long                   size   = channel.size();
+            List<MappedByteBuffer> mapped = new ArrayList<>();
+            for (long position = 0; position < size; position += SEGMENT_SIZE) {
+                mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT_SIZE, size - position)));
+            }
+            Mapping opened   = new Mapping(channel, mapped, size);
+            long    position = 0;
+            while (position + 4 <= size) {
+                int length = ByteBuffer.wrap(opened.read(position, 4)).getInt();
+                if (length <= 0 || position + 4 + length > size) {
+                    break;
+                }
+                Record record = opened.decode(position);
+                opened.index(position, record, rowHash(record.user));
+                position += 4 + length;
+            }
+            if (position < size) {
+                // incomplete last record, e.g. after a crash while appending
+                log.warnv("Truncating user snapshot {0} at {1} of {2} bytes", file, position, size);
+                channel.truncate(position);
+            }
+            opened.size = position;
+            log.infov("User snapshot {0} opened with {1} entries", file, opened.rows.size());
+            return opened;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public Map<String, String> get(String id) {
+        Mapping current = mapping;
+        long    offset  = id == null ? -1 : current.rows.get(idHash(id), 0);
+        Map<String, String> user = offset < 0 ? null : current.readAt(offset);
+        return user == null || !id.equals(user.get("id")) ? null : user;
+    }
+
+    /*
+     * Rows are indexed by the hashes of username and email as well; the returned row may belong to another user
+     * if the login name moved or two names share a hash, callers compare it with the login name.
+     */
+    public Map<String, String> findByLogin(String login) {
+        Mapping current = mapping;
+        long    offset  = login == null ? -1 : current.logins.get(OffHeapLoginIndex.hash(login), 0);
+        return offset < 0 ? null : current.readAt(offset);
+    }
+
+    public void forEach(Consumer<Map<String, String>> consumer) {
+        Mapping current = mapping;
+        current.rows.firstValues()
+                .mapToObj(current::readAt)
+                .filter(Objects::nonNull)
+                .forEach(consumer);
+    }
+
+    public void put(Map<String, String> user) {
+        String id = user.get("id");
+        if (id == null || compacting) {
+            return;
+        }
+        long hash = rowHash(user);
+        if (mapping.holds(id, hash)) {
+            return;
+        }
+        write(id, () -> {
+            if (!mapping.holds(id, hash)) {
+                append(ROW, user, hash);
+            }
+        });
+    }
+
+    public void remove(String id) {
+        if (id == null) {
+            return;
+        }
+        write(id, () -> {
+            if (mapping.rows.get(idHash(id), 0) >= 0) {
+                append(REMOVED, Map.of("id", id), 0);
+            }
+        });
+    }
+
+    private void write(String id, Runnable task) {
+        try {
+            writer.execute(task);
+        } catch (RejectedExecutionException e) {
+            log.debugv("Snapshot write queue full or closed, user {0} not written to {1}", id, file);
+        }
+    }
+
+    /*
+     * Waits until the writes queued so far are in the file.
+     */
+    void flush() {
+        try {
+            writer.submit(() -> { }).get();
+        } catch (ExecutionException | RejectedExecutionException e) {
+            log.debugv("Flushing user snapshot {0} failed: {1}", file, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void append(byte kind, Map<String, String> user, long hash) {
+        Mapping current = mapping;
+        try {
+            byte[] record   = encode(kind, user);
+            long   position = current.size;
+            current.channel.write(ByteBuffer.wrap(record), position);
+            current.size += record.length;
+            current.index(position, new Record(kind, user), hash);
+            for (Rewrite rewrite : rewrites) {
+                rewrite.appended.add(new Record(kind, user));
+            }
+        } catch (IOException e) {
+            log.warnv("Could not append user {0} to snapshot {1}: {2}", user.get("id"), file, e.getMessage());
+        }
+        if (current.size > compactMinSize && current.size > 2 * current.liveSize && !compacting) {
+            compacting = true;
+            try {
+                writer.execute(this::compact);
+            } catch (RejectedExecutionException e) {
+                compacting = false;
+            }
+        }
+    }
+
+    /*
+     * Rewrites the file with the latest record of every user still present.
+     */
+    synchronized void compact() {
+        Path tmp = file.resolveSibling(file.getFileName() + ".compact");
+        try {
+            Mapping current = mapping;
+            long    before  = current.size;
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+                for (long offset : current.rows.firstValues().toArray()) {
+                    out.write(current.read(offset, current.recordSize(offset)));
+                }
+            }
+            replaceWith(tmp);
+            log.infov("User snapshot {0} compacted from {1} to {2} bytes", file, before, mapping.size);
+        } catch (IOException e) {
+            log.warnv("Could not compact user snapshot {0}: {1}", file, e.getMessage());
+        } finally {
+            compacting = false;
+        }
+    }
+
+    /*
+     * Moves the replacement into place and reads it into a new mapping; readers keep using the previous mapping
+     * until the new one is complete.
+     */
+    private synchronized void replaceWith(Path replacement) throws IOException {
+        Files.move(replacement, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Mapping previous = mapping;
+        mapping = open();
+        previous.close();
+    }
+
+    long size() {
+        return mapping.size;
+    }
+
+    /*
+     * Writes a fresh snapshot next to the current one; it replaces the current file when finished.
+     */
+    public Rewrite startRewrite() throws IOException {
+        return new Rewrite();
+    }
+
+    public class Rewrite {
+        private final Path             tmp      = file.resolveSibling(file.getFileName() + ".tmp");
+        private final DataOutputStream out;
+        // records appended to the current file since the rewrite started, guarded by the snapshot
+        private final List<Record>     appended = new ArrayList<>();
+
+        private Rewrite() throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)));
+            synchronized (UserSnapshot.this) {
+                rewrites.add(this);
+            }
+        }
+
+        public void add(Map<String, String> user) throws IOException {
+            if (user.get("id") != null) {
+                out.write(encode(ROW, user));
+            }
+        }
+
+        public void finish() throws IOException {
+            synchronized (UserSnapshot.this) {
+                rewrites.remove(this);
+                out.close();
+                replaceWith(tmp);
+                for (Record record : appended) {
+                    String id = record.user.get("id");
+                    if (record.kind == REMOVED ? mapping.rows.get(idHash(id), 0) >= 0 : !mapping.holds(id, rowHash(record.user))) {
+                        append(record.kind, record.user, record.kind == ROW ? rowHash(record.user) : 0);
+                    }
+                }
+            }
+        }
+
+        /*
+         * Drops the rewrite, e.g. when the sync stopped before reading all users; the current file stays in place.
+         */
+        public void abort() {
+            synchronized (UserSnapshot.this) {
+                rewrites.remove(this);
+            }
+            try {
+                out.close();
+                Files.deleteIfExists(tmp);
+            } catch (IOException e) {
+                log.warnv("Could not remove {0}: {1}", tmp, e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            mapping.close();
+        }
+    }
+
+    private static List<Long> logins(Map<String, String> user) {
+        List<Long> logins = new ArrayList<>(2);
+        for (String column : new String[]{"username", "email"}) {
+            String login = OffHeapLoginIndex.normalize(user.get(column));
+            if (login != null && !login.isEmpty()) {
+                logins.add(OffHeapLoginIndex.hash(login));
+            }
+        }
+        return logins;
+    }
+
+    static long idHash(String id) {
+        long hash = fnv(id);
+        return hash == 0 ? 1 : hash;
+    }
+
+    /*
+     * 64-bit hash of the row's fields, independent of their order, to tell whether a row read from the database
+     * differs from the stored one without decoding it.
+     */
+    static long rowHash(Map<String, String> user) {
+        long hash = 0;
+        for (Map.Entry<String, String> field : user.entrySet()) {
+            long h = fnv(field.getKey()) * 0x9E3779B97F4A7C15L + (field.getValue() == null ? 1 : fnv(field.getValue()));
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            hash += h;
+        }
+        return hash;
+    }
+
+    private static long fnv(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static byte[] encode(byte kind, Map<String, String> user) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream      out   = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeByte(kind);
+        out.writeShort(user.size());
+        for (Map.Entry<String, String> field : user.entrySet()) {
+            byte[] name = field.getKey().getBytes(StandardCharsets.UTF_8);
+            out.writeShort(name.length);
+            out.write(name);
+            if (field.getValue() == null) {
+                out.writeInt(-1);
+            } else {
+                byte[] value = field.getValue().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(value.length);
+                out.write(value);
+            }
+        }
+        byte[] record = bytes.toByteArray();
+        ByteBuffer.wrap(record).putInt(0, record.length - 4);
+        return record;
+    }
+
+    /*
+     * One version of the file: its channel and mapped segments, and the offsets of the latest records. Offsets and
+     * sizes are only changed while holding the snapshot's lock.
+     */
+    private class Mapping {
+        private final FileChannel            channel;
+        private final List<MappedByteBuffer> segments;
+        private final long                   mappedSize;
+        // hash of the user id -> offset and hash of the latest record
+        private final LongTable              rows   = new LongTable(2);
+        // hash of normalised username/email -> offset of the latest record
+        private final LongTable              logins = new LongTable(1);
+        private       long                   size;
+        // bytes of the latest record of every user still present
+        private       long                   liveSize;
+
+        private Mapping(FileChannel channel, List<MappedByteBuffer> segments, long mappedSize) {
+            this.channel = channel;
+            this.segments = segments;
+            this.mappedSize = mappedSize;
+        }
+
+        private void index(long position, Record record, long hash) throws IOException {
+            long key      = idHash(record.user.get("id"));
+            long previous = rows.get(key, 0);
+            if (record.kind == REMOVED) {
+                rows.remove(key, -1);
+                Map<String, String> removed = previous < 0 ? null : readAt(previous);
+                if (removed != null) {
+                    logins(removed).forEach(login -> logins.remove(login, previous));
+                    liveSize -= recordSize(previous);
+                }
+                return;
+            }
+            rows.put(key, position, hash);
+            if (previous >= 0) {
+                liveSize -= recordSize(previous);
+            }
+            liveSize += recordSize(position);
+            logins(record.user).forEach(login -> logins.put(login, position));
+        }
+
+        private boolean holds(String id, long hash) {
+            long key = idHash(id);
+            return rows.get(key, 0) >= 0 && rows.get(key, 1) == hash;
+        }
+
+        private int recordSize(long position) throws IOException {
+            return 4 + ByteBuffer.wrap(read(position, 4)).getInt();
+        }
+
+        private Map<String, String> readAt(long position) {
+            try {
+                Record record = decode(position);
+                return record.kind == ROW ? record.user : null;
+            } catch (IOException e) {
+                log.warnv("Could not read user snapshot {0} at {1}: {2}", file, position, e.getMessage());
+                return null;
+            }
+        }
+
+        private Record decode(long position) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(read(position + 4, ByteBuffer.wrap(read(position, 4)).getInt()));
+            byte  kind   = buffer.get();
+            short fields = buffer.getShort();
+            Map<String, String> user = new HashMap<>();
+            for (int i = 0; i < fields; i++) {
+                byte[] name = new byte[buffer.getShort()];
+                buffer.get(name);
+                int length = buffer.getInt();
+                String value = null;
+                if (length >= 0) {
+                    byte[] bytes = new byte[length];
+                    buffer.get(bytes);
+                    value = new String(bytes, StandardCharsets.UTF_8);
+                }
+                user.put(new String(name, StandardCharsets.UTF_8), value);
+            }
+            return new Record(kind, user);
+        }
+
+        /*
+         * Reads from the mapped segments; records appended after the file was mapped are read from the channel.
+         */
+        private byte[] read(long position, int length) throws IOException {
+            byte[] result = new byte[length];
+            if (position + length > mappedSize) {
+                ByteBuffer buffer = ByteBuffer.wrap(result);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        throw new IOException("unexpected end of snapshot");
+                    }
+                }
+                return result;
+            }
+            int copied = 0;
+            while (copied < length) {
+                long             offset  = position + copied;
+                MappedByteBuffer segment = segments.get((int) (offset / SEGMENT_SIZE));
+                int              start   = (int) (offset % SEGMENT_SIZE);
+                int              count   = Math.min(length - copied, segment.capacity() - start);
+                segment.get(start, result, copied, count);
+                copied += count;
+            }
+            return result;
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debugv("Closing user snapshot {0} failed: {1}", file, e.getMessage());
+            }
+        }
+    }
+
+    /*
+     * Open-addressed table with linear probing from 64-bit hashes (0 is never a key) to a fixed number of long
+     * values, so the heap holds no object per user. It is changed by one thread at a time, holding the snapshot's
+     * lock, and read without locking: the values of a new key are set before the key, and a grown table is
+     * published as a whole. Values are offsets or hashes; a removed key keeps its slot with the first value set
+     * to -1 until the table grows.
+     */
+    private static class LongTable {
+        private static final int INITIAL_CAPACITY = 1024;
+
+        private final    int             stride;
+        private volatile AtomicLongArray slots;
+        // occupied slots including removed keys, and live keys
+        private          int             used;
+        private volatile int             size;
+
+        private LongTable(int values) {
+            this.stride = 1 + values;
+            this.slots = new AtomicLongArray(INITIAL_CAPACITY * stride);
+        }
+
+        private int size() {
+            return size;
+        }
+
+        /*
+         * Returns the value of the key, -1 if the key is not in the table.
+         */
+        private long get(long key, int value) {
+            AtomicLongArray current  = slots;
+            int             position = find(current, key);
+            return current.get(position) == key ? current.get(position + 1 + value) : -1;
+        }
+
+        private void put(long key, long... values) {
+            int position = find(slots, key);
+            if (slots.get(position) == 0) {
+                if ((used + 1) * 4L > slots.length() / stride * 3L) {
+                    grow();
+                    position = find(slots, key);
+                }
+                used++;
+            }
+            if (slots.get(position) != key || slots.get(position + 1) < 0) {
+                size++;
+            }
+            for (int i = 0; i < values.length; i++) {
+                slots.set(position + 1 + i, values[i]);
+            }
+            slots.set(position, key);
+        }
+
+        /*
+         * Removes the key if its first value is the expected one, or regardless of it if expected is -1.
+         */
+        private void remove(long key, long expected) {
+            int  position = find(slots, key);
+            long value    = slots.get(position + 1);
+            if (slots.get(position) == key && value >= 0 && (expected < 0 || value == expected)) {
+                slots.set(position + 1, -1);
+                size--;
+            }
+        }
+
+        private LongStream firstValues() {
+            AtomicLongArray current = slots;
+            return IntStream.range(0, current.length() / stride)
+                            .filter(slot -> current.get(slot * stride) != 0)
+                            .mapToLong(slot -> current.get(slot * stride + 1))
+                            .filter(value -> value >= 0);
+        }
+
+        /*
+         * Copies the live keys into a new table, twice as large unless removed keys took most of the slots.
+         */
+        private void grow() {
+            AtomicLongArray current  = slots;
+            int             capacity = current.length() / stride;
+            AtomicLongArray grown    = new AtomicLongArray((size * 2L >= capacity ? capacity * 2 : capacity) * stride);
+            for (int position = 0; position < current.length(); position += stride) {
+                if (current.get(position) != 0 && current.get(position + 1) >= 0) {
+                    int target = find(grown, current.get(position));
+                    for (int i = 0; i < stride; i++) {
+                        grown.set(target + i, current.get(position + i));
+                    }
+                }
+            }
+            slots = grown;
+            used = size;
+        }
+
+        /*
+         * Position of the key's slot, or of the empty slot where it would be put. The table is never full.
+         */
+        private int find(AtomicLongArray table, long key) {
+            int capacity = table.length() / stride;
+            int slot     = (int) ((key ^ (key >>> 32)) & (capacity - 1));
+            while (table.get(slot * stride) != key && table.get(slot * stride) != 0) {
+                slot = (slot + 1) & (capacity - 1);
+            }
+            return slot * stride;
+        }
+    }
+
+    private static class Record {
+        private final byte                kind;
+        private final Map<String, String> user;
+
+        private Record(byte kind, Map<String, String> user) {
+            this.kind = kind;
+            this.user = user;
+        }
+    }
+}
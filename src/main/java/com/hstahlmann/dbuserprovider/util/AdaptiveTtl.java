@@ -0,0 +1,132 @@
+package com.hstahlmann.dbuserprovider.util;
+
+import lombok.extern.jbosslog.JBossLog;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Time to live per user, derived from how often the user's row actually changed when it was refreshed from the
+ * database: it doubles after every unchanged refresh and is halved after a changed one, within the configured
+ * bounds. Rarely changing users are thus refreshed rarely, frequently changing ones often.
+ *
+ * The states are kept in access order like the entries of TimedCache; when there are more than maxEntries, the
+ * state of the least recently used user is dropped.
+ */
+@JBossLog
+public class AdaptiveTtl {
+
+    private static final long STATS_INTERVAL = 10000;
+
+    private final long                minTtlMillis;
+    private final long                maxTtlMillis;
+    private final Map<String, State>  states;
+    private final LongAdder           hits             = new LongAdder();
+    private final LongAdder           refreshes        = new LongAdder();
+    private final LongAdder           changedRefreshes = new LongAdder();
+
+    public AdaptiveTtl(long minTtlMillis, long maxTtlMillis, int maxEntries) {
+        this.minTtlMillis = minTtlMillis;
+        this.maxTtlMillis = Math.max(minTtlMillis, maxTtlMillis);
+        this.states = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, State> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return maxTtlMillis > 0;
+    }
+
+    public long getMaxTtlMillis() {
+        return maxTtlMillis;
+    }
+
+    public long ttl(String id) {
+        State state;
+        synchronized (states) {
+            state = states.get(id);
+        }
+        return state == null ? minTtlMillis : state.ttlMillis;
+    }
+
+    /*
+     * Whether data of the user loaded at the given time is still within its time to live.
+     */
+    public boolean isFresh(String id, long loadedAt) {
+        boolean fresh = System.currentTimeMillis() - loadedAt < ttl(id);
+        if (fresh) {
+            hits.increment();
+        }
+        return fresh;
+    }
+
+    public void recordHit() {
+        hits.increment();
+    }
+
+    /*
+     * Records a refresh of the user's row and returns the new time to live of the user.
+     */
+    public long recordRefresh(String id, Map<String, String> user) {
+        int   hash  = user.hashCode();
+        State state;
+        synchronized (states) {
+            State previous = states.get(id);
+            if (previous == null) {
+                state = new State(minTtlMillis, hash);
+            } else {
+                boolean changed = previous.rowHash != hash;
+                if (changed) {
+                    changedRefreshes.increment();
+                }
+                long ttl = changed ? Math.max(minTtlMillis, previous.ttlMillis / 2) : Math.min(maxTtlMillis, Math.max(1, previous.ttlMillis) * 2);
+                state = new State(ttl, hash);
+            }
+            states.put(id, state);
+        }
+        refreshes.increment();
+        if (refreshes.sum() % STATS_INTERVAL == 0) {
+            log.infov("Adaptive user TTL: {0}", getStats());
+        }
+        return state.ttlMillis;
+    }
+
+    public void forget(String id) {
+        synchronized (states) {
+            states.remove(id);
+        }
+    }
+
+    /*
+     * Hit rate: share of lookups answered without going to the database. Staleness: share of refreshes that found
+     * the row changed, i.e. how often cached data had been outdated.
+     */
+    public String getStats() {
+        long hitCount     = hits.sum();
+        long refreshCount = refreshes.sum();
+        long changed      = changedRefreshes.sum();
+        int  users;
+        synchronized (states) {
+            users = states.size();
+        }
+        return String.format("%d users, hit rate %.1f%%, %d refreshes, %.1f%% of them changed",
+                             users,
+                             hitCount + refreshCount == 0 ? 0.0 : 100.0 * hitCount / (hitCount + refreshCount),
+                             refreshCount,
+                             refreshCount == 0 ? 0.0 : 100.0 * changed / refreshCount);
+    }
+
+    private static class State {
+        private final long ttlMillis;
+        private final int  rowHash;
+
+        private State(long ttlMillis, int rowHash) {
+            this.ttlMillis = ttlMillis;
+            this.rowHash = rowHash;
+        }
+    }
+}
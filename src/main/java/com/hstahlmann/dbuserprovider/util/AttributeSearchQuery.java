@@ -0,0 +1,75 @@
+package com.hstahlmann.dbuserprovider.util;
+
+import lombok.Getter;
+import org.keycloak.models.UserModel;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/*
+ * Builds a query filtering the "list all" query by the user fields Keycloak passes as search parameters
+ * (username, email, first and last name). Exact searches compare with '=', all others are prefix searches
+ * (like 'term%'), so both can be answered from an index on the underlying column. An ORDER BY of the "list all"
+ * query is applied to the filtered query.
+ */
+@Getter
+public class AttributeSearchQuery {
+
+    private static final Map<String, String> SEARCHABLE_COLUMNS = new LinkedHashMap<>();
+
+    static {
+        SEARCHABLE_COLUMNS.put(UserModel.USERNAME, "username");
+        SEARCHABLE_COLUMNS.put(UserModel.EMAIL, "email");
+        SEARCHABLE_COLUMNS.put(UserModel.FIRST_NAME, "firstName");
+        SEARCHABLE_COLUMNS.put(UserModel.LAST_NAME, "lastName");
+    }
+
+    private final String   query;
+    private final Object[] params;
+    private final String   cacheKey;
+
+    private AttributeSearchQuery(String query, Object[] params, String cacheKey) {
+        this.query = query;
+        this.params = params;
+        this.cacheKey = cacheKey;
+    }
+
+    public static boolean isApplicable(Map<String, String> searchParams) {
+        return SEARCHABLE_COLUMNS.keySet().stream().anyMatch(p -> hasValue(searchParams.get(p)));
+    }
+
+    public static AttributeSearchQuery of(String listAllQuery, Map<String, String> searchParams) {
+        boolean      exact      = Boolean.parseBoolean(searchParams.get(UserModel.EXACT));
+        StringJoiner predicates = new StringJoiner(" and ");
+        StringJoiner cacheKey   = new StringJoiner(",", exact ? "exact:" : "prefix:", "");
+        List<Object> params     = new ArrayList<>();
+        for (Map.Entry<String, String> column : SEARCHABLE_COLUMNS.entrySet()) {
+            String value = searchParams.get(column.getKey());
+            if (!hasValue(value)) {
+                continue;
+            }
+            value = value.trim();
+            if (exact) {
+                predicates.add("search_query." + column.getValue() + " = ?");
+                params.add(value);
+            } else {
+                predicates.add("search_query." + column.getValue() + " like ? escape '!'");
+                params.add(escapeLike(value) + "%");
+            }
+            cacheKey.add(column.getKey() + "=" + value);
+        }
+        String query = String.format("select * from (%s) search_query where %s%s", PagingUtil.withoutOrderBy(listAllQuery), predicates, PagingUtil.outerOrderBy(listAllQuery));
+        return new AttributeSearchQuery(query, params.toArray(), cacheKey.toString());
+    }
+
+    private static boolean hasValue(String value) {
+        return value != null && !value.isBlank();
+    }
+
+    private static String escapeLike(String value) {
+        return value.replace("!", "!!").replace("%", "!%").replace("_", "!_");
+    }
+}
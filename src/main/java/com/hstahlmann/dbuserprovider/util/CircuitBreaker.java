@@ -0,0 +1,78 @@
+package com.hstahlmann.dbuserprovider.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Opens after a number of consecutive connection failures (or a failed health probe), so callers fail fast
+ * instead of waiting for connection timeouts. It is closed again by the next success, normally the health probe.
+ * Without a health probe, an open breaker lets a single caller through once the retry interval has passed
+ * (half-open); its outcome closes the breaker or keeps it open for another interval.
+ *
+ * It is asked on every query, so reading it does not lock; only opening and closing it does.
+ */
+public class CircuitBreaker {
+
+    private final int           failureThreshold;
+    private final long          retryMillis;
+    private final AtomicInteger failures  = new AtomicInteger();
+    private final AtomicLong    openUntil = new AtomicLong();
+    private volatile boolean    open;
+
+    public CircuitBreaker(int failureThreshold, long retryMillis) {
+        this.failureThreshold = failureThreshold;
+        this.retryMillis = retryMillis;
+    }
+
+    public boolean isOpen() {
+        if (!open) {
+            return false;
+        }
+        long until = openUntil.get();
+        long now   = System.currentTimeMillis();
+        // trial call for the one caller that moves the deadline; the others keep failing fast
+        return now < until || !openUntil.compareAndSet(until, now + retryMillis);
+    }
+
+    /*
+     * Returns whether this success closed the breaker.
+     */
+    public boolean recordSuccess() {
+        if (!open) {
+            if (failures.get() != 0) {
+                failures.set(0);
+            }
+            return false;
+        }
+        synchronized (this) {
+            boolean wasOpen = open;
+            failures.set(0);
+            open = false;
+            return wasOpen;
+        }
+    }
+
+    /*
+     * Returns whether this failure opened the breaker.
+     */
+    public boolean recordFailure() {
+        if (failures.incrementAndGet() < failureThreshold || open) {
+            return false;
+        }
+        synchronized (this) {
+            if (open) {
+                return false;
+            }
+            openUntil.set(System.currentTimeMillis() + retryMillis);
+            open = true;
+            return true;
+        }
+    }
+
+    public synchronized boolean trip() {
+        boolean wasOpen = open;
+        openUntil.set(System.currentTimeMillis() + retryMillis);
+        open = true;
+        return !wasOpen;
+    }
+}
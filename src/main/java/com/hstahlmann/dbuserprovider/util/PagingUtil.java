@@ -15,6 +15,11 @@ public class PagingUtil {
 
     @SuppressWarnings("RegExpRedundantEscape")
     private static final Pattern SINGLE_QUESTION_MARK_REGEX = Pattern.compile("(^|[^\\?])(\\?)([^\\?]|$)");
+    private static final Pattern ORDER_BY                   = Pattern.compile("(?i)order\\s+by\\b");
+    // table qualifier of a column reference, e.g. "u." in "u.username" or "[u]." in "[u].[username]"
+    private static final Pattern COLUMN_QUALIFIER           = Pattern.compile("(?<![\\w.\\]\"`])(?:[A-Za-z_]\\w*|\"[^\"]+\"|\\[[^\\]]+\\]|`[^`]+`)\\.(?=[A-Za-z_\"\\[`])");
+
+    public static final String TOTAL_COUNT_COLUMN = "kc_total_count";
 
 
     public static class Pageable {
@@ -25,6 +30,78 @@ public class PagingUtil {
             this.firstResult = firstResult;
             this.maxResults = maxResults;
         }
+
+        public int getFirstResult() {
+            return firstResult;
+        }
+
+        public int getMaxResults() {
+            return maxResults;
+        }
+    }
+
+    /*
+     * Pages the query like formatScriptWithPageable, but every returned row additionally carries the total number
+     * of rows matching the unpaged query in the TOTAL_COUNT_COLUMN column, so page and count need one execution only.
+     */
+    public static String formatScriptWithPageableAndCount(String query, Pageable pageable, RDBMS RDBMS) {
+        String countingQuery = String.format("select paged_query.*, count(*) over() as %s from (%s) paged_query%s", TOTAL_COUNT_COLUMN, withoutOrderBy(query), outerOrderBy(query));
+        return formatScriptWithPageable(countingQuery, pageable, RDBMS);
+    }
+
+    /*
+     * The query without a trailing ORDER BY clause, for wrapping it in a derived table: SQL Server rejects ORDER BY
+     * in derived tables, and counts or filters by key do not need it.
+     */
+    public static String withoutOrderBy(String query) {
+        int orderBy = findTrailingOrderBy(query);
+        return orderBy < 0 ? query : query.substring(0, orderBy).trim();
+    }
+
+    /*
+     * The trailing ORDER BY clause of the query for the query wrapping it, with leading space, or an empty string.
+     * Table qualifiers are removed, so the clause refers to the columns of the derived table; it can therefore only
+     * use columns the query selects.
+     */
+    public static String outerOrderBy(String query) {
+        int orderBy = findTrailingOrderBy(query);
+        if (orderBy < 0) {
+            return "";
+        }
+        String clause = query.substring(orderBy).trim();
+        if (clause.endsWith(";")) {
+            clause = clause.substring(0, clause.length() - 1).trim();
+        }
+        return " " + COLUMN_QUALIFIER.matcher(clause).replaceAll("");
+    }
+
+    /*
+     * Position of the last ORDER BY outside of parentheses, string literals and quoted names, or -1.
+     */
+    private static int findTrailingOrderBy(String query) {
+        int  found = -1;
+        int  depth = 0;
+        char quote = 0;
+        for (int i = 0; i < query.length(); i++) {
+            char c = query.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"' || c == '`') {
+                quote = c;
+            } else if (c == '[') {
+                quote = ']';
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (depth == 0 && (c == 'o' || c == 'O') && (i == 0 || !Character.isLetterOrDigit(query.charAt(i - 1)) && query.charAt(i - 1) != '_')
+                       && ORDER_BY.matcher(query).region(i, query.length()).lookingAt()) {
+                found = i;
+            }
+        }
+        return found;
     }
 
     public static String formatScriptWithPageable(String query, Pageable pageable, RDBMS RDBMS) {
@@ -0,0 +1,126 @@
+package com.hstahlmann.dbuserprovider.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/*
+ * Small thread-safe cache whose entries expire after a fixed time to live. Instances are kept per provider
+ * component, so they outlive the per-session DBUserStorageProvider. Expired entries can be kept for a grace
+ * period, during which getStale still returns them.
+ *
+ * Entries are kept in access order; when the cache is full, the least recently used entry is dropped, so a put
+ * costs the same regardless of the number of entries. Expired entries are dropped when they are read or when
+ * they become the least recently used one.
+ */
+public class TimedCache<K, V> {
+
+    private final Map<K, Entry<V>> entries;
+    private final long             ttlMillis;
+    private final int              maxEntries;
+    private final long             staleMillis;
+
+    public TimedCache(long ttlMillis, int maxEntries) {
+        this(ttlMillis, maxEntries, 0);
+    }
+
+    public TimedCache(long ttlMillis, int maxEntries, long staleMillis) {
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+        this.staleMillis = staleMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public boolean isEnabled() {
+        return ttlMillis > 0;
+    }
+
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired()) {
+            if (entry.isEvictable(staleMillis)) {
+                entries.remove(key);
+            }
+            return null;
+        }
+        return entry.value;
+    }
+
+    /*
+     * Like get, but also returns entries that expired less than the grace period ago.
+     */
+    public synchronized V getStale(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isEvictable(staleMillis)) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    public V get(K key, Function<K, V> loader) {
+        V value = get(key);
+        if (value == null) {
+            value = loader.apply(key);
+            if (value != null) {
+                put(key, value);
+            }
+        }
+        return value;
+    }
+
+    public void put(K key, V value) {
+        put(key, value, ttlMillis);
+    }
+
+    /*
+     * Puts an entry with its own time to live instead of the cache's default.
+     */
+    public synchronized void put(K key, V value, long entryTtlMillis) {
+        if (!isEnabled()) {
+            return;
+        }
+        entries.put(key, new Entry<>(value, System.currentTimeMillis() + entryTtlMillis));
+    }
+
+    public synchronized void invalidate(K key) {
+        entries.remove(key);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static class Entry<V> {
+        private final V    value;
+        private final long expiresAt;
+
+        private Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() > expiresAt;
+        }
+
+        private boolean isEvictable(long staleMillis) {
+            return System.currentTimeMillis() > expiresAt + staleMillis;
+        }
+    }
+}
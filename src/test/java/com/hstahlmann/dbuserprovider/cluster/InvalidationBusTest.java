@@ -0,0 +1,71 @@
+package com.hstahlmann.dbuserprovider.cluster;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class InvalidationBusTest {
+
+    @Test
+    public void localBusDeliversToEveryListener() {
+        LocalInvalidationBus        bus    = new LocalInvalidationBus();
+        List<UserInvalidationEvent> first  = new ArrayList<>();
+        List<UserInvalidationEvent> second = new ArrayList<>();
+        bus.addListener(first::add);
+        bus.addListener(second::add);
+        UserInvalidationEvent event = UserInvalidationEvent.users("c1", Set.of("1"), Set.of());
+        bus.publish(event);
+        assertEquals(List.of(event), first);
+        assertEquals(List.of(event), second);
+    }
+
+    @Test
+    public void mergesEventsPerComponent() {
+        List<UserInvalidationEvent> merged = UserInvalidationEvent.merge(List.of(
+                UserInvalidationEvent.users("c1", Set.of("1"), Set.of()),
+                UserInvalidationEvent.users("c2", Set.of("2"), Set.of()),
+                UserInvalidationEvent.users("c1", Set.of("3"), Set.of("alice"))));
+        assertEquals(2, merged.size());
+        assertEquals("c1", merged.get(0).getComponentId());
+        assertEquals(Set.of("1", "3"), merged.get(0).getIds());
+        assertEquals(Set.of("alice"), merged.get(0).getLogins());
+        assertFalse(merged.get(0).isAll());
+        assertEquals("c2", merged.get(1).getComponentId());
+        assertEquals(Set.of("2"), merged.get(1).getIds());
+    }
+
+    @Test
+    public void invalidatingAllUsersCoversSingleUsers() {
+        List<UserInvalidationEvent> merged = UserInvalidationEvent.merge(List.of(
+                UserInvalidationEvent.users("c1", Set.of("1"), Set.of()),
+                UserInvalidationEvent.allUsers("c1")));
+        assertEquals(1, merged.size());
+        assertTrue(merged.get(0).isAll());
+        assertEquals(Set.of(), merged.get(0).getIds());
+    }
+
+    @Test
+    public void eventsSurviveSerialization() throws Exception {
+        UserInvalidationEvent  event = UserInvalidationEvent.users("c1", Set.of("1"), Set.of("alice"));
+        ByteArrayOutputStream  bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(event);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            UserInvalidationEvent read = (UserInvalidationEvent) in.readObject();
+            assertEquals("c1", read.getComponentId());
+            assertEquals(Set.of("1"), read.getIds());
+            assertEquals(Set.of("alice"), read.getLogins());
+        }
+    }
+}
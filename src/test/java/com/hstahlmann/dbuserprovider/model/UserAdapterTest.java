@@ -0,0 +1,84 @@
+package com.hstahlmann.dbuserprovider.model;
+
+import org.keycloak.common.util.MultivaluedHashMap;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.storage.federated.UserFederatedStorageProvider;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UserAdapterTest {
+
+    /*
+     * A session whose federated storage keeps the attributes of one user in the given map.
+     */
+    @SuppressWarnings("unchecked")
+    private static KeycloakSession session(MultivaluedHashMap<String, String> attributes) {
+        UserFederatedStorageProvider storage = (UserFederatedStorageProvider) Proxy.newProxyInstance(
+                UserAdapterTest.class.getClassLoader(), new Class<?>[]{UserFederatedStorageProvider.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getAttributes":
+                            return new MultivaluedHashMap<>(attributes);
+                        case "setAttribute":
+                            attributes.put((String) args[2], (List<String>) args[3]);
+                            return null;
+                        case "setSingleAttribute":
+                            attributes.putSingle((String) args[2], (String) args[3]);
+                            return null;
+                        default:
+                            return null;
+                    }
+                });
+        return (KeycloakSession) Proxy.newProxyInstance(UserAdapterTest.class.getClassLoader(), new Class<?>[]{KeycloakSession.class},
+                (proxy, method, args) -> "getProvider".equals(method.getName()) ? storage : null);
+    }
+
+    private static UserAdapter adapter(MultivaluedHashMap<String, String> attributes, boolean stale) {
+        RealmModel     realm = (RealmModel) Proxy.newProxyInstance(UserAdapterTest.class.getClassLoader(), new Class<?>[]{RealmModel.class},
+                                                                   (proxy, method, args) -> null);
+        ComponentModel model = new ComponentModel();
+        model.setId("component");
+        return new UserAdapter(session(attributes), realm, model, Map.of("id", "1", "username", "alice", "email", "alice@example.com"),
+                               false, Set::of, stale);
+    }
+
+    @Test
+    public void staleUsersCarryTheMarker() {
+        MultivaluedHashMap<String, String> attributes = new MultivaluedHashMap<>();
+        UserAdapter                        user       = adapter(attributes, true);
+        assertTrue(user.isStale());
+        assertEquals(List.of("true"), user.getAttributes().get(UserAdapter.STALE_ATTRIBUTE));
+        assertEquals("true", user.getFirstAttribute(UserAdapter.STALE_ATTRIBUTE));
+        assertEquals(List.of("true"), user.getAttributeStream(UserAdapter.STALE_ATTRIBUTE).collect(Collectors.toList()));
+        assertFalse(attributes.containsKey(UserAdapter.STALE_ATTRIBUTE));
+    }
+
+    @Test
+    public void freshUsersDoNotCarryTheMarker() {
+        UserAdapter user = adapter(new MultivaluedHashMap<>(), false);
+        assertFalse(user.getAttributes().containsKey(UserAdapter.STALE_ATTRIBUTE));
+        assertNull(user.getFirstAttribute(UserAdapter.STALE_ATTRIBUTE));
+        assertEquals(0, user.getAttributeStream(UserAdapter.STALE_ATTRIBUTE).count());
+    }
+
+    @Test
+    public void markerCannotBeWritten() {
+        MultivaluedHashMap<String, String> attributes = new MultivaluedHashMap<>();
+        UserAdapter                        user       = adapter(attributes, false);
+        user.setSingleAttribute(UserAdapter.STALE_ATTRIBUTE, "true");
+        user.setAttribute(UserAdapter.STALE_ATTRIBUTE, List.of("true"));
+        assertFalse(attributes.containsKey(UserAdapter.STALE_ATTRIBUTE));
+        assertNull(user.getFirstAttribute(UserAdapter.STALE_ATTRIBUTE));
+    }
+}
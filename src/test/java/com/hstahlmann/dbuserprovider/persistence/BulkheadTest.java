@@ -0,0 +1,45 @@
+package com.hstahlmann.dbuserprovider.persistence;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class BulkheadTest {
+
+    @Test
+    public void unlimitedClassesAreNeverRejected() {
+        Bulkhead bulkhead = new Bulkhead(Map.of(), Map.of(), 0);
+        for (int i = 0; i < 100; i++) {
+            assertNotNull(bulkhead.acquire(OperationClass.SEARCH));
+        }
+    }
+
+    @Test
+    public void rejectsOperationsAboveTheClassLimit() {
+        Bulkhead        bulkhead = new Bulkhead(Map.of(OperationClass.SEARCH, 1), Map.of(OperationClass.SEARCH, 10L), 0);
+        Bulkhead.Permit permit   = bulkhead.acquire(OperationClass.SEARCH);
+        assertNotNull(permit);
+        assertNull(bulkhead.acquire(OperationClass.SEARCH));
+        // other classes have their own compartment
+        assertNotNull(bulkhead.acquire(OperationClass.LOOKUP));
+        permit.close();
+        // closing twice must not release a second permit
+        permit.close();
+        Bulkhead.Permit next = bulkhead.acquire(OperationClass.SEARCH);
+        assertNotNull(next);
+        assertNull(bulkhead.acquire(OperationClass.SEARCH));
+    }
+
+    @Test
+    public void totalLimitCapsAllClasses() {
+        Bulkhead        bulkhead = new Bulkhead(Map.of(OperationClass.SEARCH, 5), Map.of(), 1);
+        Bulkhead.Permit permit   = bulkhead.acquire(OperationClass.LOOKUP);
+        assertNotNull(permit);
+        assertNull(bulkhead.acquire(OperationClass.SEARCH));
+        permit.close();
+        assertNotNull(bulkhead.acquire(OperationClass.SEARCH));
+    }
+}
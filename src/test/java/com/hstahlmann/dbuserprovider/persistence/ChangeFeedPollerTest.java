@@ -0,0 +1,138 @@
+package com.hstahlmann.dbuserprovider.persistence;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChangeFeedPollerTest {
+
+    // the committed rows of the change table, visible to the poller
+    private final List<Map<String, String>> feed      = new ArrayList<>();
+    private final List<String>              refreshed = new ArrayList<>();
+    private final AtomicLong                now       = new AtomicLong();
+    private       boolean                   unavailable;
+
+    private final ChangeFeedPoller poller = new ChangeFeedPoller(new ChangeFeedPoller.Source() {
+        @Override
+        public Long readChangeFeedHead() {
+            return feed.stream().mapToLong(change -> Long.parseLong(change.get("seq"))).max().orElse(Long.MIN_VALUE);
+        }
+
+        @Override
+        public List<Map<String, String>> readChanges(long after) {
+            return feed.stream()
+                       .filter(change -> Long.parseLong(change.get("seq")) > after)
+                       .sorted((a, b) -> Long.compare(Long.parseLong(a.get("seq")), Long.parseLong(b.get("seq"))))
+                       .limit(ChangeFeedPoller.BATCH_SIZE)
+                       .collect(Collectors.toList());
+        }
+
+        @Override
+        public List<Map<String, String>> refreshUsers(Collection<String> ids) {
+            if (unavailable) {
+                throw new IllegalStateException("changed users could not be reloaded");
+            }
+            refreshed.addAll(ids);
+            return List.of();
+        }
+    }, users -> {
+    }, now::get);
+
+    @Test
+    public void startsAtTheHeadOfTheFeed() {
+        commit(1, "old");
+        poller.poll();
+        poller.poll();
+        assertEquals(List.of(), refreshed);
+        commit(2, "new");
+        poller.poll();
+        assertEquals(List.of("new"), refreshed);
+    }
+
+    @Test
+    public void reportsEachChangeOnce() {
+        commit(1, "a");
+        poller.poll();
+        commit(2, "b");
+        commit(3, "c");
+        poller.poll();
+        poller.poll();
+        assertEquals(List.of("b", "c"), refreshed);
+    }
+
+    @Test
+    public void picksUpChangesCommittedAfterHigherSequences() {
+        commit(1, "a");
+        poller.poll();
+        // 2 is written first but commits after 3
+        commit(3, "c");
+        poller.poll();
+        commit(2, "b");
+        poller.poll();
+        poller.poll();
+        assertEquals(List.of("c", "b"), refreshed);
+    }
+
+    @Test
+    public void givesUpOnGapsAfterTheTimeout() {
+        commit(1, "a");
+        poller.poll();
+        commit(3, "c");
+        poller.poll();
+        now.addAndGet(ChangeFeedPoller.GAP_TIMEOUT_MILLIS + 1);
+        poller.poll();
+        // a number that shows up after the timeout is not read any more
+        commit(2, "b");
+        poller.poll();
+        assertEquals(List.of("c"), refreshed);
+    }
+
+    @Test
+    public void readsChangesAgainWhenTheRefreshFailed() {
+        commit(1, "a");
+        poller.poll();
+        commit(2, "b");
+        unavailable = true;
+        poller.poll();
+        unavailable = false;
+        poller.poll();
+        poller.poll();
+        assertEquals(List.of("b"), refreshed);
+    }
+
+    @Test
+    public void keepsGapsWhenTheRefreshFailed() {
+        commit(1, "a");
+        poller.poll();
+        commit(3, "c");
+        poller.poll();
+        commit(2, "b");
+        unavailable = true;
+        poller.poll();
+        unavailable = false;
+        poller.poll();
+        assertEquals(List.of("c", "b"), refreshed);
+    }
+
+    @Test
+    public void readsAllBatchesOfARun() {
+        commit(0, "start");
+        poller.poll();
+        for (int seq = 1; seq <= ChangeFeedPoller.BATCH_SIZE + 10; seq++) {
+            commit(seq, "u" + seq);
+        }
+        poller.poll();
+        assertEquals(ChangeFeedPoller.BATCH_SIZE + 10, refreshed.size());
+    }
+
+    private void commit(long seq, String id) {
+        feed.add(Map.of("seq", String.valueOf(seq), "id", id));
+    }
+}
@@ -0,0 +1,134 @@
+package com.hstahlmann.dbuserprovider.persistence;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapLoginIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void findsIdsByUsernameAndEmail() throws IOException {
+        Path              file  = folder.getRoot().toPath().resolve("logins.idx");
+        OffHeapLoginIndex index = new OffHeapLoginIndex(file);
+        assertFalse(index.isReady());
+        OffHeapLoginIndex.Build build = index.startRebuild();
+        for (int i = 0; i < 1000; i++) {
+            build.add("id-" + i, "user" + i, i % 2 == 0 ? "user" + i + "@example.com" : null);
+        }
+        build.finish();
+        assertTrue(index.isReady());
+        assertEquals("id-7", index.find("user7"));
+        assertEquals("id-8", index.find(" USER8@example.com "));
+        assertNull(index.find("user7@example.com"));
+        assertNull(index.find("nobody"));
+        assertEquals(List.of(file), files());
+    }
+
+    @Test
+    public void slotsAndIdsCrossingSegmentsAreFound() throws IOException {
+        Path              file  = folder.getRoot().toPath().resolve("logins.idx");
+        OffHeapLoginIndex index = new OffHeapLoginIndex(file, 100);
+        OffHeapLoginIndex.Build build = index.startRebuild();
+        for (int i = 0; i < 1000; i++) {
+            build.add("00000000-0000-0000-0000-" + String.format("%012d", i), "user" + i, "user" + i + "@example.com");
+        }
+        build.finish();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("00000000-0000-0000-0000-" + String.format("%012d", i), index.find("user" + i));
+            assertEquals("00000000-0000-0000-0000-" + String.format("%012d", i), index.find("user" + i + "@example.com"));
+        }
+        assertNull(index.find("nobody"));
+        assertEquals("00000000-0000-0000-0000-000000000999", new OffHeapLoginIndex(file, 100).find("user999"));
+    }
+
+    @Test
+    public void usernameTakesPrecedenceOverEmailOfAnotherUser() throws IOException {
+        OffHeapLoginIndex       index = new OffHeapLoginIndex(folder.getRoot().toPath().resolve("logins.idx"));
+        OffHeapLoginIndex.Build build = index.startRebuild();
+        build.add("1", "alice", "shared@example.com");
+        build.add("2", "bob", "alice");
+        build.add("3", "carol", "shared@example.com");
+        build.finish();
+        assertEquals("1", index.find("alice"));
+        assertEquals("1", index.find("shared@example.com"));
+        assertEquals("3", index.find("carol"));
+    }
+
+    @Test
+    public void overlappingBuildsUseTheirOwnFiles() throws IOException {
+        Path                    file   = folder.getRoot().toPath().resolve("logins.idx");
+        OffHeapLoginIndex       index  = new OffHeapLoginIndex(file);
+        OffHeapLoginIndex.Build first  = index.startRebuild();
+        OffHeapLoginIndex.Build second = index.startRebuild();
+        first.add("1", "alice", null);
+        second.add("2", "bob", null);
+        first.add("3", "carol", null);
+        first.finish();
+        assertEquals("1", index.find("alice"));
+        assertEquals("3", index.find("carol"));
+        assertNull(index.find("bob"));
+        second.finish();
+        assertEquals("2", index.find("bob"));
+        assertNull(index.find("alice"));
+        assertEquals(List.of(file), files());
+    }
+
+    @Test
+    public void idsLongerThanTheLengthFieldAreLeftOut() throws IOException {
+        OffHeapLoginIndex       index = new OffHeapLoginIndex(folder.getRoot().toPath().resolve("logins.idx"));
+        OffHeapLoginIndex.Build build = index.startRebuild();
+        String                  long1 = "x".repeat(40000);
+        build.add(long1, "alice", null);
+        build.add("x".repeat(70000), "bob", null);
+        build.finish();
+        assertEquals(long1, index.find("alice"));
+        assertNull(index.find("bob"));
+    }
+
+    @Test
+    public void abortedBuildKeepsTheCurrentIndex() throws IOException {
+        Path                    file  = folder.getRoot().toPath().resolve("logins.idx");
+        OffHeapLoginIndex       index = new OffHeapLoginIndex(file);
+        OffHeapLoginIndex.Build build = index.startRebuild();
+        build.add("1", "alice", null);
+        build.finish();
+        build = index.startRebuild();
+        build.add("2", "bob", null);
+        build.abort();
+        assertEquals("1", index.find("alice"));
+        assertNull(index.find("bob"));
+        assertEquals(List.of(file), files());
+    }
+
+    @Test
+    public void indexIsMappedAgainAfterRestart() throws IOException {
+        Path                    file  = folder.getRoot().toPath().resolve("logins.idx");
+        OffHeapLoginIndex.Build build = new OffHeapLoginIndex(file).startRebuild();
+        build.add("42", "alice", null);
+        build.finish();
+        OffHeapLoginIndex reopened = new OffHeapLoginIndex(file);
+        assertTrue(reopened.isReady());
+        assertEquals("42", reopened.find("Alice"));
+    }
+
+    private List<Path> files() throws IOException {
+        try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+            return files.collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.hstahlmann.dbuserprovider.persistence;
+
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class StatementCacheTest {
+
+    private final AtomicInteger prepared = new AtomicInteger();
+    private final AtomicInteger closed   = new AtomicInteger();
+
+    @Test
+    public void reusesStatementsThatWereKept() throws Exception {
+        StatementCache cache      = new StatementCache(10);
+        Connection     connection = connection(new AtomicBoolean());
+        PreparedStatement first;
+        try (StatementCache.Lease lease = cache.prepare(connection, "select 1")) {
+            first = lease.getStatement();
+            lease.keep();
+        }
+        try (StatementCache.Lease lease = cache.prepare(connection, "select 1")) {
+            assertSame(first, lease.getStatement());
+            lease.keep();
+        }
+        assertEquals(1, prepared.get());
+        assertEquals(0, closed.get());
+    }
+
+    @Test
+    public void failedStatementDropsAllStatementsOfItsConnection() throws Exception {
+        StatementCache cache      = new StatementCache(10);
+        Connection     connection = connection(new AtomicBoolean());
+        PreparedStatement other;
+        try (StatementCache.Lease lease = cache.prepare(connection, "select 2")) {
+            other = lease.getStatement();
+            lease.keep();
+        }
+        try (StatementCache.Lease lease = cache.prepare(connection, "select 1")) {
+            // no keep(): the query failed
+        }
+        assertEquals(2, closed.get());
+        try (StatementCache.Lease lease = cache.prepare(connection, "select 2")) {
+            assertNotSame(other, lease.getStatement());
+        }
+    }
+
+    @Test
+    public void statementsOfClosedConnectionsAreSweptOnReturn() throws Exception {
+        StatementCache cache       = new StatementCache(10);
+        AtomicBoolean  firstClosed = new AtomicBoolean();
+        Connection     first       = connection(firstClosed);
+        Connection     second      = connection(new AtomicBoolean());
+        try (StatementCache.Lease lease = cache.prepare(first, "select 1")) {
+            lease.keep();
+        }
+        try (StatementCache.Lease lease = cache.prepare(second, "select 1")) {
+            lease.keep();
+        }
+        firstClosed.set(true);
+        Thread.sleep(1100);
+        try (StatementCache.Lease lease = cache.prepare(second, "select 1")) {
+            lease.keep();
+        }
+        assertEquals(1, closed.get());
+    }
+
+    @Test
+    public void failedStatementIsNotReused() throws Exception {
+        StatementCache cache      = new StatementCache(10);
+        Connection     connection = connection(new AtomicBoolean());
+        PreparedStatement failed;
+        try (StatementCache.Lease lease = cache.prepare(connection, "select 1")) {
+            failed = lease.getStatement();
+            // no keep(): the query failed
+        }
+        assertEquals(1, closed.get());
+        try (StatementCache.Lease lease = cache.prepare(connection, "select 1")) {
+            assertNotSame(failed, lease.getStatement());
+        }
+        assertEquals(2, prepared.get());
+    }
+
+    @Test
+    public void statementsOfClosedConnectionsAreDroppedForNewConnections() throws Exception {
+        StatementCache cache       = new StatementCache(10);
+        AtomicBoolean  firstClosed = new AtomicBoolean();
+        try (StatementCache.Lease lease = cache.prepare(connection(firstClosed), "select 1")) {
+            lease.keep();
+        }
+        firstClosed.set(true);
+        try (StatementCache.Lease lease = cache.prepare(connection(new AtomicBoolean()), "select 1")) {
+            lease.keep();
+        }
+        assertEquals(1, closed.get());
+    }
+
+    @Test
+    public void disabledCacheClosesEveryStatement() throws Exception {
+        StatementCache cache = new StatementCache(0);
+        try (StatementCache.Lease lease = cache.prepare(connection(new AtomicBoolean()), "select 1")) {
+            lease.keep();
+            assertFalse(lease.getStatement().isClosed());
+        }
+        assertEquals(1, closed.get());
+    }
+
+    private Connection connection(AtomicBoolean connectionClosed) {
+        Connection[] self = new Connection[1];
+        self[0] = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Connection.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "unwrap":
+                    return self[0];
+                case "isClosed":
+                    return connectionClosed.get();
+                case "prepareStatement":
+                    prepared.incrementAndGet();
+                    return statement();
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    return null;
+            }
+        });
+        return self[0];
+    }
+
+    private PreparedStatement statement() {
+        AtomicBoolean statementClosed = new AtomicBoolean();
+        return (PreparedStatement) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "close":
+                    if (!statementClosed.getAndSet(true)) {
+                        closed.incrementAndGet();
+                    }
+                    return null;
+                case "isClosed":
+                    return statementClosed.get();
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    return null;
+            }
+        });
+    }
+}
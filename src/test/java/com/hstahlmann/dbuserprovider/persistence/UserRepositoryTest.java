@@ -0,0 +1,75 @@
+package com.hstahlmann.dbuserprovider.persistence;
+
+import com.hstahlmann.dbuserprovider.model.CacheConfigurations;
+import com.hstahlmann.dbuserprovider.model.QueryConfigurations;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class UserRepositoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Map<String, String> user(String id, String username, String email) {
+        Map<String, String> user = new HashMap<>();
+        user.put("id", id);
+        user.put("username", username);
+        user.put("email", email);
+        return user;
+    }
+
+    private static QueryConfigurations queries() {
+        return new QueryConfigurations("count", "listAll", "findById", "findByUsername", "findByUsernameOrEmail", "findBySearchTerm",
+                                       "findPasswordHash", null, "SHA-256", RDBMS.POSTGRESQL, false, false, null, null, null,
+                                       null, false, true, null, false, 500, null, 30, null, 30, List.of());
+    }
+
+    /*
+     * Counts the reads that would go to the database; there is none, so every one of them fails.
+     */
+    private static class CountingDataSourceProvider extends DataSourceProvider {
+        private final AtomicInteger reads = new AtomicInteger();
+
+        @Override
+        DataSource getReadDataSource(String userKey) {
+            reads.incrementAndGet();
+            return null;
+        }
+    }
+
+    @Test
+    public void preWarmedUsersAreServedWithoutQuery() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("users.snapshot");
+        try (UserSnapshot snapshot = new UserSnapshot(file)) {
+            snapshot.put(user("1", "alice", "alice@example.com"));
+            snapshot.put(user("2", "bob", null));
+        }
+        CountingDataSourceProvider dataSourceProvider = new CountingDataSourceProvider();
+        CacheConfigurations        caches             = new CacheConfigurations(300_000, 10_000, 100, false, null, 60_000, file.toString(),
+                                                                                1_000, 0, 3_600_000, 200);
+        UserRepository repository = new UserRepository("component", dataSourceProvider, queries(), caches, event -> { });
+        try {
+            repository.preWarmFromSnapshot();
+            assertEquals(user("1", "alice", "alice@example.com"), repository.findUserById("1"));
+            assertEquals("2", repository.findUserByLoginName("BOB", false).map(u -> u.get("id")).orElse(null));
+            assertEquals("1", repository.findUserByLoginName("alice@example.com", true).map(u -> u.get("id")).orElse(null));
+            assertEquals(0, dataSourceProvider.reads.get());
+            assertFalse(repository.isStale("1"));
+            assertFalse(repository.isStale("2"));
+        } finally {
+            repository.close();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.hstahlmann.dbuserprovider.persistence;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UserSearchIndexTest {
+
+    @Test
+    public void plainTermsArePrefixSearches() {
+        assertTrue(UserSearchIndex.isPrefixSearch("ali"));
+        assertTrue(UserSearchIndex.isPrefixSearch(" ali* "));
+        assertTrue(UserSearchIndex.isPrefixSearch("alice@example.com"));
+    }
+
+    @Test
+    public void otherTermsAreLeftToTheSearchQuery() {
+        assertFalse(UserSearchIndex.isPrefixSearch(null));
+        assertFalse(UserSearchIndex.isPrefixSearch("*"));
+        assertFalse(UserSearchIndex.isPrefixSearch("*ali"));
+        assertFalse(UserSearchIndex.isPrefixSearch("a*i"));
+        assertFalse(UserSearchIndex.isPrefixSearch("\"alice\""));
+        assertFalse(UserSearchIndex.isPrefixSearch("alice smith"));
+    }
+
+    @Test
+    public void findsUsersByPrefixInValueOrder() {
+        UserSearchIndex index = built(user("3", "carol", "ali@example.com"), user("1", "alice", "alice@example.com"), user("2", "bob", null));
+        assertTrue(index.isReady());
+        assertEquals(List.of("3", "1"), index.search("Ali", 0, -1));
+        assertEquals(List.of("1"), index.search("ali", 1, 10));
+        assertEquals(List.of("3"), index.search("ali", 0, 1));
+        assertEquals(2, index.count("ali"));
+        assertEquals(3, index.count(null));
+        assertEquals(List.of(), index.search("dave", 0, -1));
+    }
+
+    @Test
+    public void searchesSeeUpdatesAfterTheRebuild() {
+        UserSearchIndex index = built(user("1", "alice", null), user("2", "bob", null));
+        index.update(user("2", "alina", null));
+        index.update(user("3", "alfred", null));
+        assertEquals(List.of("3", "1", "2"), index.search("al", 0, -1));
+        assertEquals(List.of(), index.search("bob", 0, -1));
+        assertEquals(3, index.count("al"));
+        assertEquals(3, index.count(""));
+    }
+
+    @Test
+    public void searchesDropRemovedUsers() {
+        UserSearchIndex index = built(user("1", "alice", null), user("2", "alina", null));
+        index.remove("1");
+        index.remove("4");
+        assertEquals(List.of("2"), index.search("ali", 0, -1));
+        assertEquals(1, index.count("ali"));
+        index.update(user("1", "alice", null));
+        assertEquals(List.of("1", "2"), index.search("ali", 0, -1));
+    }
+
+    @Test
+    public void changesDuringRebuildAreKept() {
+        UserSearchIndex index = built(user("1", "alice", null), user("2", "bob", null));
+        UserSearchIndex.Rebuild rebuild = index.startRebuild();
+        rebuild.add(user("1", "alice", null));
+        index.update(user("2", "bert", null));
+        index.remove("1");
+        index.update(user("3", "berta", null));
+        rebuild.add(user("2", "bob", null));
+        assertEquals(List.of("2", "3"), index.search("ber", 0, -1));
+        rebuild.finish();
+        assertEquals(List.of("2", "3"), index.search("ber", 0, -1));
+        assertEquals(List.of(), index.search("bob", 0, -1));
+        assertEquals(List.of(), index.search("alice", 0, -1));
+    }
+
+    @Test
+    public void abortedRebuildKeepsTheCurrentIndex() {
+        UserSearchIndex index = built(user("1", "alice", null));
+        UserSearchIndex.Rebuild rebuild = index.startRebuild();
+        rebuild.add(user("2", "bob", null));
+        rebuild.abort();
+        assertEquals(List.of("1"), index.search("a", 0, -1));
+        assertEquals(List.of(), index.search("b", 0, -1));
+    }
+
+    @Test
+    public void lastRowOfAUserInTheListingWins() {
+        UserSearchIndex index = built(user("1", "alice", null), user("1", "alina", null));
+        assertEquals(List.of(), index.search("alice", 0, -1));
+        assertEquals(List.of("1"), index.search("alina", 0, -1));
+    }
+
+    @SafeVarargs
+    private static UserSearchIndex built(Map<String, String>... users) {
+        UserSearchIndex         index   = new UserSearchIndex();
+        UserSearchIndex.Rebuild rebuild = index.startRebuild();
+        for (Map<String, String> user : users) {
+            rebuild.add(user);
+        }
+        rebuild.finish();
+        return index;
+    }
+
+    private static Map<String, String> user(String id, String username, String email) {
+        return email == null ? Map.of("id", id, "username", username) : Map.of("id", id, "username", username, "email", email);
+    }
+}
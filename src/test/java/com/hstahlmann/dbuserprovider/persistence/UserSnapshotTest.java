@@ -0,0 +1,192 @@
+package com.hstahlmann.dbuserprovider.persistence;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UserSnapshotTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Map<String, String> user(String id, String username, String email) {
+        Map<String, String> user = new HashMap<>();
+        user.put("id", id);
+        user.put("username", username);
+        user.put("email", email);
+        user.put("firstName", null);
+        return user;
+    }
+
+    @Test
+    public void rowsSurviveReopening() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("users.snapshot");
+        try (UserSnapshot snapshot = new UserSnapshot(file)) {
+            snapshot.put(user("1", "alice", "alice@example.com"));
+            snapshot.put(user("2", "bob", null));
+            snapshot.put(user("1", "alice", "alice@example.org"));
+            snapshot.remove("2");
+        }
+        try (UserSnapshot snapshot = new UserSnapshot(file)) {
+            assertEquals(user("1", "alice", "alice@example.org"), snapshot.get("1"));
+            assertEquals("1", snapshot.findByLogin("ALICE@example.org").get("id"));
+            assertNull(snapshot.get("2"));
+            assertNull(snapshot.findByLogin("bob"));
+            List<Map<String, String>> all = new ArrayList<>();
+            snapshot.forEach(all::add);
+            assertEquals(1, all.size());
+        }
+    }
+
+    @Test
+    public void unchangedRowsAreNotAppended() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("users.snapshot");
+        try (UserSnapshot snapshot = new UserSnapshot(file)) {
+            snapshot.put(user("1", "alice", null));
+            snapshot.flush();
+            long size = snapshot.size();
+            snapshot.put(user("1", "alice", null));
+            snapshot.flush();
+            assertEquals(size, snapshot.size());
+            snapshot.put(user("1", "alice", "alice@example.com"));
+            snapshot.flush();
+            assertTrue(snapshot.size() > size);
+        }
+    }
+
+    @Test
+    public void findsRowsAfterTheTablesGrew() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("users.snapshot");
+        try (UserSnapshot snapshot = new UserSnapshot(file)) {
+            for (int i = 0; i < 5000; i++) {
+                snapshot.put(user("id-" + i, "user" + i, "user" + i + "@example.com"));
+            }
+            for (int i = 0; i < 5000; i += 2) {
+                snapshot.remove("id-" + i);
+            }
+            snapshot.flush();
+            assertNull(snapshot.get("id-4000"));
+            assertEquals("user4001", snapshot.get("id-4001").get("username"));
+            assertEquals("id-4001", snapshot.findByLogin("user4001@example.com").get("id"));
+            assertNull(snapshot.findByLogin("user4000"));
+            List<Map<String, String>> all = new ArrayList<>();
+            snapshot.forEach(all::add);
+            assertEquals(2500, all.size());
+        }
+        try (UserSnapshot snapshot = new UserSnapshot(file)) {
+            assertEquals("user3", snapshot.get("id-3").get("username"));
+            assertNull(snapshot.get("id-2"));
+        }
+    }
+
+    @Test
+    public void truncatesIncompleteLastRecord() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("users.snapshot");
+        long complete;
+        try (UserSnapshot snapshot = new UserSnapshot(file)) {
+            snapshot.put(user("1", "alice", null));
+        }
+        complete = Files.size(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 100, 1}), complete);
+        }
+        try (UserSnapshot snapshot = new UserSnapshot(file)) {
+            assertEquals("alice", snapshot.get("1").get("username"));
+        }
+        assertEquals(complete, Files.size(file));
+    }
+
+    @Test
+    public void rewriteReplacesAllRows() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("users.snapshot");
+        try (UserSnapshot snapshot = new UserSnapshot(file)) {
+            snapshot.put(user("1", "alice", null));
+            snapshot.flush();
+            UserSnapshot.Rewrite rewrite = snapshot.startRewrite();
+            rewrite.add(user("2", "bob", "bob@example.com"));
+            rewrite.finish();
+            assertNull(snapshot.get("1"));
+            assertEquals("2", snapshot.findByLogin("bob@example.com").get("id"));
+        }
+    }
+
+    @Test
+    public void rowsAppendedDuringRewriteAreKept() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("users.snapshot");
+        try (UserSnapshot snapshot = new UserSnapshot(file)) {
+            snapshot.put(user("1", "alice", null));
+            snapshot.put(user("3", "carol", null));
+            snapshot.flush();
+            UserSnapshot.Rewrite rewrite = snapshot.startRewrite();
+            rewrite.add(user("1", "alice", null));
+            snapshot.put(user("1", "alice", "alice@example.com"));
+            snapshot.put(user("2", "bob", null));
+            snapshot.remove("3");
+            snapshot.flush();
+            rewrite.add(user("3", "carol", null));
+            rewrite.finish();
+            assertEquals(user("1", "alice", "alice@example.com"), snapshot.get("1"));
+            assertEquals("bob", snapshot.get("2").get("username"));
+            assertNull(snapshot.get("3"));
+        }
+        try (UserSnapshot snapshot = new UserSnapshot(file)) {
+            assertEquals("alice@example.com", snapshot.get("1").get("email"));
+            assertNull(snapshot.get("3"));
+        }
+    }
+
+    @Test
+    public void abortedRewriteKeepsTheCurrentFile() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("users.snapshot");
+        try (UserSnapshot snapshot = new UserSnapshot(file)) {
+            snapshot.put(user("1", "alice", null));
+            snapshot.flush();
+            UserSnapshot.Rewrite rewrite = snapshot.startRewrite();
+            rewrite.add(user("2", "bob", null));
+            rewrite.abort();
+            assertEquals("alice", snapshot.get("1").get("username"));
+            assertNull(snapshot.get("2"));
+            assertFalse(Files.exists(file.resolveSibling("users.snapshot.tmp")));
+        }
+    }
+
+    @Test
+    public void compactionKeepsLatestRows() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("users.snapshot");
+        try (UserSnapshot snapshot = new UserSnapshot(file, Long.MAX_VALUE)) {
+            for (int i = 0; i < 20; i++) {
+                snapshot.put(user("1", "alice" + i, null));
+            }
+            snapshot.put(user("2", "bob", null));
+            snapshot.put(user("3", "carol", null));
+            snapshot.remove("3");
+            snapshot.flush();
+            long before = snapshot.size();
+            snapshot.compact();
+            assertTrue(snapshot.size() < before);
+            assertEquals("alice19", snapshot.get("1").get("username"));
+            assertEquals("2", snapshot.findByLogin("bob").get("id"));
+            assertNull(snapshot.get("3"));
+        }
+        try (UserSnapshot snapshot = new UserSnapshot(file)) {
+            assertEquals("alice19", snapshot.get("1").get("username"));
+            assertNull(snapshot.findByLogin("alice0"));
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.hstahlmann.dbuserprovider.util;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class AdaptiveTtlTest {
+
+    @Test
+    public void doublesTtlWhileUnchangedAndHalvesOnChange() {
+        AdaptiveTtl ttl = new AdaptiveTtl(1000, 8000, 10);
+        assertEquals(1000, ttl.recordRefresh("1", Map.of("id", "1")));
+        assertEquals(2000, ttl.recordRefresh("1", Map.of("id", "1")));
+        assertEquals(4000, ttl.recordRefresh("1", Map.of("id", "1")));
+        assertEquals(8000, ttl.recordRefresh("1", Map.of("id", "1")));
+        assertEquals(8000, ttl.recordRefresh("1", Map.of("id", "1")));
+        assertEquals(4000, ttl.recordRefresh("1", Map.of("id", "1", "email", "new@example.com")));
+    }
+
+    @Test
+    public void dropsLeastRecentlyUsedStateWhenFull() {
+        AdaptiveTtl ttl = new AdaptiveTtl(1000, 8000, 2);
+        ttl.recordRefresh("a", Map.of("id", "a"));
+        ttl.recordRefresh("a", Map.of("id", "a"));
+        ttl.recordRefresh("b", Map.of("id", "b"));
+        ttl.recordRefresh("b", Map.of("id", "b"));
+        ttl.ttl("a");
+        ttl.recordRefresh("c", Map.of("id", "c"));
+        assertEquals(2000, ttl.ttl("a"));
+        assertEquals(1000, ttl.ttl("b"));
+        assertEquals(1000, ttl.ttl("c"));
+    }
+}
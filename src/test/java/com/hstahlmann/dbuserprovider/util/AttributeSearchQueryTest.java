@@ -0,0 +1,49 @@
+package com.hstahlmann.dbuserprovider.util;
+
+import org.junit.Test;
+import org.keycloak.models.UserModel;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AttributeSearchQueryTest {
+
+    private static final String LIST_ALL = "select u.id, u.username, u.email from users u order by u.username";
+
+    @Test
+    public void appliesOnlyToSearchableFields() {
+        assertTrue(AttributeSearchQuery.isApplicable(Map.of(UserModel.EMAIL, "a@example.com")));
+        assertFalse(AttributeSearchQuery.isApplicable(Map.of(UserModel.EMAIL, " ")));
+        assertFalse(AttributeSearchQuery.isApplicable(Map.of(UserModel.SEARCH, "alice")));
+    }
+
+    @Test
+    public void prefixSearchEscapesLikeWildcards() {
+        AttributeSearchQuery query = AttributeSearchQuery.of(LIST_ALL, Map.of(UserModel.USERNAME, " al_ice%! "));
+        assertEquals("select * from (select u.id, u.username, u.email from users u) search_query"
+                     + " where search_query.username like ? escape '!' order by username", query.getQuery());
+        assertArrayEquals(new Object[]{"al!_ice!%!!%"}, query.getParams());
+    }
+
+    @Test
+    public void exactSearchComparesAllGivenFields() {
+        AttributeSearchQuery query = AttributeSearchQuery.of(LIST_ALL, Map.of(UserModel.EXACT, "true",
+                                                                              UserModel.USERNAME, "alice",
+                                                                              UserModel.EMAIL, "alice@example.com"));
+        assertEquals("select * from (select u.id, u.username, u.email from users u) search_query"
+                     + " where search_query.username = ? and search_query.email = ? order by username", query.getQuery());
+        assertArrayEquals(new Object[]{"alice", "alice@example.com"}, query.getParams());
+    }
+
+    @Test
+    public void cacheKeyDistinguishesExactAndPrefixSearches() {
+        String prefix = AttributeSearchQuery.of(LIST_ALL, Map.of(UserModel.USERNAME, "alice")).getCacheKey();
+        String exact  = AttributeSearchQuery.of(LIST_ALL, Map.of(UserModel.USERNAME, "alice", UserModel.EXACT, "true")).getCacheKey();
+        assertNotEquals(prefix, exact);
+    }
+}
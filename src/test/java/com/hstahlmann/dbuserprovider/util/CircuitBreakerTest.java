@@ -0,0 +1,48 @@
+package com.hstahlmann.dbuserprovider.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 60_000);
+        assertFalse(breaker.recordFailure());
+        breaker.recordSuccess();
+        assertFalse(breaker.recordFailure());
+        assertFalse(breaker.recordFailure());
+        assertFalse(breaker.isOpen());
+        assertTrue(breaker.recordFailure());
+        assertTrue(breaker.isOpen());
+    }
+
+    @Test
+    public void successClosesOpenBreaker() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 60_000);
+        assertTrue(breaker.trip());
+        assertFalse(breaker.trip());
+        assertTrue(breaker.isOpen());
+        assertTrue(breaker.recordSuccess());
+        assertFalse(breaker.isOpen());
+    }
+
+    @Test
+    public void letsOneTrialCallThroughAfterRetryInterval() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 20);
+        breaker.trip();
+        assertTrue(breaker.isOpen());
+        Thread.sleep(30);
+        assertFalse(breaker.isOpen());
+        assertTrue(breaker.isOpen());
+        breaker.recordFailure();
+        assertTrue(breaker.isOpen());
+        Thread.sleep(30);
+        assertFalse(breaker.isOpen());
+        breaker.recordSuccess();
+        assertFalse(breaker.isOpen());
+        assertFalse(breaker.isOpen());
+    }
+}
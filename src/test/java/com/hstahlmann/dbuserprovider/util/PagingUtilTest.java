@@ -0,0 +1,48 @@
+package com.hstahlmann.dbuserprovider.util;
+
+import com.hstahlmann.dbuserprovider.persistence.RDBMS;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PagingUtilTest {
+
+    @Test
+    public void stripsTrailingOrderBy() {
+        assertEquals("select id, username from users u",
+                     PagingUtil.withoutOrderBy("select id, username from users u order by u.username"));
+        assertEquals(" ORDER BY username desc, id", PagingUtil.outerOrderBy("select id, username from users u ORDER BY u.username desc, u.id;"));
+    }
+
+    @Test
+    public void keepsQueriesWithoutTopLevelOrderBy() {
+        String query = "select * from (select id from users order by id) x where x.note = 'order by' and \"order by\" = 1";
+        assertEquals(query, PagingUtil.withoutOrderBy(query));
+        assertEquals("", PagingUtil.outerOrderBy(query));
+        assertEquals("select reorder by_x from t", PagingUtil.withoutOrderBy("select reorder by_x from t"));
+    }
+
+    @Test
+    public void removesQuotedQualifiers() {
+        assertEquals(" order by [username], \"email\", lower(lastName)",
+                     PagingUtil.outerOrderBy("select * from users [u] order by [u].[username], \"u\".\"email\", lower(u.lastName)"));
+    }
+
+    @Test
+    public void countingWrapperMovesOrderByOutOfTheDerivedTable() {
+        String paged = PagingUtil.formatScriptWithPageableAndCount("select u.id, u.username from users u where u.active = ? order by u.username",
+                                                                   new PagingUtil.Pageable(20, 10), RDBMS.POSTGRESQL);
+        assertTrue(paged, paged.startsWith("select paged_query.*, count(*) over() as " + PagingUtil.TOTAL_COUNT_COLUMN
+                                           + " from (select u.id, u.username from users u where u.active = ?) paged_query order by username"));
+        // the query parameter is kept, the page is inlined
+        assertEquals(paged, 1, paged.chars().filter(c -> c == '?').count());
+        assertTrue(paged, paged.contains("10") && paged.contains("20"));
+    }
+
+    @Test
+    public void countingWrapperWithoutOrderBy() {
+        String paged = PagingUtil.formatScriptWithPageableAndCount("select id from users", new PagingUtil.Pageable(0, 5), RDBMS.POSTGRESQL);
+        assertTrue(paged, paged.startsWith("select paged_query.*, count(*) over() as " + PagingUtil.TOTAL_COUNT_COLUMN + " from (select id from users) paged_query"));
+    }
+}
@@ -0,0 +1,70 @@
+package com.hstahlmann.dbuserprovider.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+public class TimedCacheTest {
+
+    @Test
+    public void returnsEntriesUntilTheyExpire() throws InterruptedException {
+        TimedCache<String, String> cache = new TimedCache<>(60_000, 10);
+        cache.put("a", "1");
+        cache.put("b", "2", 1);
+        Thread.sleep(5);
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+    }
+
+    @Test
+    public void dropsLeastRecentlyUsedEntryWhenFull() {
+        TimedCache<String, String> cache = new TimedCache<>(60_000, 2);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.get("a");
+        cache.put("c", "3");
+        assertEquals(2, cache.size());
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("3", cache.get("c"));
+    }
+
+    @Test
+    public void servesExpiredEntriesDuringGracePeriod() throws InterruptedException {
+        TimedCache<String, String> cache = new TimedCache<>(60_000, 10, 60_000);
+        cache.put("a", "1", 1);
+        Thread.sleep(5);
+        assertNull(cache.get("a"));
+        assertEquals("1", cache.getStale("a"));
+    }
+
+    @Test
+    public void loaderResultIsCachedUnlessNull() {
+        TimedCache<String, Integer> cache = new TimedCache<>(60_000, 10);
+        assertEquals(Integer.valueOf(1), cache.get("a", k -> 1));
+        assertEquals(Integer.valueOf(1), cache.get("a", k -> 2));
+        assertNull(cache.get("b", k -> null));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void invalidatedEntriesAreGone() {
+        TimedCache<String, String> cache = new TimedCache<>(60_000, 10);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.invalidate("a");
+        assertNull(cache.get("a"));
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void disabledCacheKeepsNothing() {
+        TimedCache<String, String> cache = new TimedCache<>(0, 10);
+        cache.put("a", "1");
+        assertFalse(cache.isEnabled());
+        assertNull(cache.get("a"));
+    }
+}